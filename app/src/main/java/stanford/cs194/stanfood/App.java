@@ -1,7 +1,12 @@
 package stanford.cs194.stanfood;
 
 import android.app.Application;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+import stanford.cs194.stanfood.helpers.TimeDateUtils;
 
 public class App extends Application {
 
@@ -17,5 +22,15 @@ public class App extends Application {
     public void onCreate() {
         super.onCreate();
         sApp = this;
+
+        // cached date formatters keep the time zone and locale they were built with
+        IntentFilter timeSettings = new IntentFilter(Intent.ACTION_TIMEZONE_CHANGED);
+        timeSettings.addAction(Intent.ACTION_LOCALE_CHANGED);
+        registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                TimeDateUtils.onTimeSettingsChanged();
+            }
+        }, timeSettings);
     }
 }
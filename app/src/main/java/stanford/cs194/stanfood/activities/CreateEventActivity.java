@@ -1,7 +1,6 @@
 package stanford.cs194.stanfood.activities;
 
 import android.app.DatePickerDialog;
-import android.app.ProgressDialog;
 import android.app.TimePickerDialog;
 import android.content.Context;
 import android.content.Intent;
@@ -11,7 +10,6 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.os.Environment;
 import android.provider.MediaStore;
-import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v4.content.FileProvider;
@@ -30,9 +28,6 @@ import android.widget.TextView;
 import android.widget.TimePicker;
 import android.widget.Toast;
 
-import com.google.android.gms.tasks.OnCompleteListener;
-import com.google.android.gms.tasks.Task;
-
 import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
@@ -43,15 +38,24 @@ import java.util.Locale;
 
 import stanford.cs194.stanfood.R;
 import stanford.cs194.stanfood.database.Database;
-import stanford.cs194.stanfood.database.Storage;
+import stanford.cs194.stanfood.database.UploadQueue;
+import stanford.cs194.stanfood.helpers.TimeDateUtils;
 
 public class CreateEventActivity extends AppCompatActivity {
     public static final long HOURS_TO_MS = 3600000;
     public static final long MINUTES_TO_MS = 60000;
     private static final int RC_CAMERA_INTENT = 991;
+    private static final int RC_GALLERY_INTENT = 992;
     private Uri photoURI;
     private Database db;
-    private Storage store;
+    private UploadQueue uploadQueue;
+    // the food item's id is picked up front, so the photo can upload while the form is filled in
+    private String foodId;
+    private boolean photoQueued;
+    // the queue deletes a camera photo once copied; a photo picked from the gallery is kept
+    private boolean cameraPhotoQueued;
+    // set while the event is being written, and once it is stored
+    private boolean eventSubmitted;
     private SharedPreferences prefs;
 
     @Override
@@ -59,7 +63,8 @@ public class CreateEventActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_create_event);
         db = new Database();
-        store = new Storage();
+        uploadQueue = UploadQueue.getInstance(db);
+        foodId = db.newFoodId();
         prefs = getSharedPreferences("loginData", MODE_PRIVATE);
         photoURI = FileProvider.getUriForFile(getApplicationContext(),
                 "stanford.cs194.stanfood.fileprovider",
@@ -82,6 +87,29 @@ public class CreateEventActivity extends AppCompatActivity {
                 imageCameraButtonOnClickListener(v);
             }
         });
+        FloatingActionButton galleryFab = findViewById(R.id.galleryFab);
+        galleryFab.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                imageGalleryButtonOnClickListener(v);
+            }
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if(isFinishing() && !eventSubmitted) {
+            discardPhoto(foodId, photoQueued, cameraPhotoQueued);
+        }
+    }
+
+    /**
+     * Drops the queued photo, and the camera's file unless the queue deletes it.
+     */
+    private void discardPhoto(String photoFoodId, boolean queued, boolean cameraQueued) {
+        if(queued) uploadQueue.cancel(photoFoodId);
+        if(!cameraQueued) getContentResolver().delete(photoURI, null, null);
     }
 
     private void imageCameraButtonOnClickListener(View v){
@@ -91,21 +119,59 @@ public class CreateEventActivity extends AppCompatActivity {
             startActivityForResult(intent, RC_CAMERA_INTENT);
         }
     }
+
+    /**
+     * Picks an existing photo, e.g. of a flyer that was already posted for another event.
+     */
+    private void imageGalleryButtonOnClickListener(View v){
+        Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+        intent.setType("image/*");
+        if (intent.resolveActivity(getPackageManager()) != null) {
+            startActivityForResult(intent, RC_GALLERY_INTENT);
+        }
+    }
     @Override
     protected void onActivityResult(int requestCode, int resultCode, @Nullable Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
+        if(resultCode != RESULT_OK) return;
         if(requestCode == RC_CAMERA_INTENT){
-            if(resultCode == RESULT_OK){
-                try {
-                    Bitmap bitmap = MediaStore.Images.Media.getBitmap(this.getContentResolver(), photoURI);
-                    ImageView imageView = findViewById(R.id.imageView);
-                    imageView.setImageBitmap(bitmap);
-                    imageView.setVisibility(View.VISIBLE);
-                } catch (IOException e) {
-                    Log.d("ERROR", e.toString());
+            queuePhoto(photoURI, true);
+        } else if(requestCode == RC_GALLERY_INTENT && data != null && data.getData() != null){
+            queuePhoto(data.getData(), false);
+        }
+    }
+
+    /**
+     * Queues the photo for upload, replacing a photo queued before, and shows its preview
+     * once the queue has decoded it in the background. A gallery pick that can't be decoded
+     * is dropped rather than uploaded as is.
+     * @param fromCamera - whether it is the camera's file, which is deleted once copied
+     */
+    private void queuePhoto(Uri uri, final boolean fromCamera){
+        // a retaken photo replaces the one already uploading
+        if(photoQueued) {
+            uploadQueue.cancel(foodId);
+            foodId = db.newFoodId();
+        }
+        final String photoFoodId = foodId;
+        uploadQueue.enqueue(uri, photoFoodId, fromCamera, new UploadQueue.OnPhotoCopiedListener() {
+            @Override
+            public void onPhotoCopied(@Nullable Bitmap preview) {
+                // replaced by another photo, or the form was closed, while it was decoded
+                if(!photoFoodId.equals(foodId) || isFinishing()) return;
+                if(preview == null && !fromCamera) {
+                    uploadQueue.cancel(photoFoodId);
+                    foodId = db.newFoodId();
+                    photoQueued = false;
+                    displayToast("Could not read the selected photo");
                 }
+                ImageView imageView = findViewById(R.id.imageView);
+                imageView.setImageBitmap(preview);
+                imageView.setVisibility(preview != null ? View.VISIBLE : View.GONE);
             }
-        }
+        });
+        photoQueued = true;
+        cameraPhotoQueued = fromCamera;
     }
 
     private File createImageFile()  {
@@ -131,6 +197,8 @@ public class CreateEventActivity extends AppCompatActivity {
             ListAdapter loc_adapter = textView.getAdapter();
             for(int i = 0; i < loc_adapter.getCount(); i++) {
                 if(s.compareTo(loc_adapter.getItem(i).toString()) == 0) {
+                    // geocoded now, so creating the event only has to look up the pin
+                    db.prefetchLocation(s);
                     return;
                 }
             }
@@ -283,7 +351,7 @@ public class CreateEventActivity extends AppCompatActivity {
      * Contains event name, food description, location name, event description,
      * start date and time, and duration.
      */
-    public void createEvent(View view) {
+    public void createEvent(final View view) {
         final String eventName = getEventName();
         final String eventDescription = getEventDescription();
         final String foodDescription = getFood();
@@ -300,35 +368,35 @@ public class CreateEventActivity extends AppCompatActivity {
             return;
         }
 
-        final ProgressDialog progressDialog = new ProgressDialog(this);
-        progressDialog.setMessage("Creating your event...");
-        progressDialog.show();
-
-        /* Note the upload task is run even if an image is never taken. In this case,
-        it will upload a null file to Firebase Storage, and populate the imagePath field
-        on the Food model.
-         */
-        Task imageTask = store.uploadImage(photoURI);
-        imageTask.addOnCompleteListener(new OnCompleteListener<Uri>() {
-            @Override
-            public void onComplete(@NonNull Task<Uri> task) {
-                String toastMessage = "";
-                if(task.isSuccessful()){
-                    String imagePath = task.getResult().toString();
-                    db.createEvent(eventName, eventDescription, locationName,
-                            startTimeMS, durationMS, foodDescription, userId, imagePath);
-                    toastMessage = "Event creation successful!";
-                }
-                else{
-                    Log.d("ERROR", task.getException().toString());
-                    toastMessage = "Unable to create event";
-                }
-                progressDialog.dismiss();
-                displayToast(toastMessage);
-                getContentResolver().delete(photoURI, null, null);
-                finish();
-            }
-        });
+        // not submitted twice while the location and pin are looked up and the event written
+        view.setEnabled(false);
+        eventSubmitted = true;
+        final String eventFoodId = foodId;
+        final boolean eventPhotoQueued = photoQueued;
+        final boolean eventCameraPhotoQueued = cameraPhotoQueued;
+        db.createEvent(eventName, eventDescription, locationName,
+                startTimeMS, durationMS, foodDescription, userId, eventFoodId,
+                new Database.OnEventCreatedListener() {
+                    @Override
+                    public void onEventCreated(@Nullable String error) {
+                        if(error == null) {
+                            // the photo keeps uploading after the activity is closed and is added to the food once stored
+                            if(eventPhotoQueued) uploadQueue.release(eventFoodId);
+                            if(!eventCameraPhotoQueued) getContentResolver().delete(photoURI, null, null);
+                            displayToast("Event creation successful!");
+                            finish();
+                        } else if(isFinishing()) {
+                            // closed while the event was being created, so nobody can retry it
+                            discardPhoto(eventFoodId, eventPhotoQueued, eventCameraPhotoQueued);
+                            displayToast("Event creation failed: " + error);
+                        } else {
+                            // the form and photo are kept, so the event can be fixed and submitted again
+                            eventSubmitted = false;
+                            view.setEnabled(true);
+                            displayToast("Event creation failed: " + error);
+                        }
+                    }
+                });
     }
 
     private void displayToast(String toastMessage){
@@ -358,8 +426,7 @@ public class CreateEventActivity extends AppCompatActivity {
                 public void onDateSet(DatePicker view, int year, int monthOfYear, int dayOfMonth) {
                     Calendar dateCal = new GregorianCalendar(year, monthOfYear, dayOfMonth);
                     Date date = dateCal.getTime();
-                    String datePattern = "yyyy-MM-dd";
-                    SimpleDateFormat sdf = new SimpleDateFormat(datePattern);
+                    SimpleDateFormat sdf = TimeDateUtils.getFormat(TimeDateUtils.DATE_PATTERN);
                     dateText.setText(sdf.format(date));
                 }
             }, year, month, day);
@@ -386,8 +453,7 @@ public class CreateEventActivity extends AppCompatActivity {
                     timeCal.set(Calendar.HOUR_OF_DAY, hourOfDay);
                     timeCal.set(Calendar.MINUTE, minute);
                     Date time = timeCal.getTime();
-                    String timePattern = "H:mm";
-                    SimpleDateFormat sdf = new SimpleDateFormat(timePattern);
+                    SimpleDateFormat sdf = TimeDateUtils.getFormat(TimeDateUtils.TIME_PATTERN);
                     timeText.setText(sdf.format(time));
                 }
             }, hour, minute, false);
@@ -6,11 +6,17 @@ import android.support.v4.app.FragmentManager;
 import android.support.v7.app.AppCompatActivity;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.Button;
+import android.widget.Toast;
+
+import java.util.ArrayList;
 
 import stanford.cs194.stanfood.R;
+import stanford.cs194.stanfood.adapters.DeleteEventAdapter;
 import stanford.cs194.stanfood.database.CreateList;
 import stanford.cs194.stanfood.database.Database;
 import stanford.cs194.stanfood.fragments.BottomSheetListView;
+import stanford.cs194.stanfood.models.Event;
 
 public class DeleteEventActivity extends AppCompatActivity {
     private Database db;
@@ -38,6 +44,27 @@ public class DeleteEventActivity extends AppCompatActivity {
         getUserEventList();
     }
 
+    /*
+     * Deletes all events selected with a long press in a single database write.
+     */
+    public void deleteSelected(View view) {
+        BottomSheetListView eventListView = findViewById(R.id.eventList);
+        if(!(eventListView.getAdapter() instanceof DeleteEventAdapter)) return;
+        ArrayList<Event> selected = ((DeleteEventAdapter) eventListView.getAdapter()).getSelectedEvents();
+        if(selected.isEmpty()) return;
+
+        final int count = selected.size();
+        view.setEnabled(false);
+        db.deleteEvents(selected, new Database.OnEventsDeletedListener() {
+            @Override
+            public void onEventsDeleted(boolean success) {
+                String text = success ? count + " Event(s) Deleted!" : "Could not delete events, please try again.";
+                Toast.makeText(DeleteEventActivity.this, text, Toast.LENGTH_LONG).show();
+                getUserEventList();
+            }
+        });
+    }
+
     /*
      * Obtains and displays the list of all events corresponding to the logged-in user
      */
@@ -49,7 +76,15 @@ public class DeleteEventActivity extends AppCompatActivity {
         BottomSheetListView eventListView = findViewById(R.id.eventList);
         ViewGroup userEventsContent = findViewById(R.id.userEventsContent);
 
+        final Button deleteSelected = findViewById(R.id.deleteSelected);
+        deleteSelected.setEnabled(false);
+
         CreateList eventRows = new CreateList(db, eventListView, userEventsContent, supportFragment);
-        eventRows.createUserEventList(userId);
+        eventRows.createUserEventList(userId, new DeleteEventAdapter.OnSelectionChangedListener() {
+            @Override
+            public void onSelectionChanged(int selectedCount) {
+                deleteSelected.setEnabled(selectedCount > 0);
+            }
+        });
     }
 }
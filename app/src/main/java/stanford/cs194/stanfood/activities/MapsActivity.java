@@ -10,12 +10,12 @@ import android.content.res.Resources;
 import android.location.Location;
 import android.location.LocationManager;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.annotation.NonNull;
 import android.support.design.widget.NavigationView;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.app.FragmentManager;
 import android.support.v4.content.ContextCompat;
-import android.support.v4.view.ViewCompat;
 import android.support.v4.widget.DrawerLayout;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
@@ -44,9 +44,9 @@ import com.google.android.gms.maps.GoogleMap.OnMarkerClickListener;
 import com.google.android.gms.maps.OnMapReadyCallback;
 import com.google.android.gms.maps.SupportMapFragment;
 import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
 import com.google.android.gms.maps.model.MapStyleOptions;
 import com.google.android.gms.maps.model.Marker;
-import com.google.android.gms.maps.model.MarkerOptions;
 import com.google.android.gms.tasks.OnCompleteListener;
 import com.google.android.gms.tasks.OnSuccessListener;
 import com.google.android.gms.tasks.Task;
@@ -54,44 +54,57 @@ import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseError;
 import com.google.firebase.database.ValueEventListener;
 
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
-
-import javax.net.ssl.HttpsURLConnection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import stanford.cs194.stanfood.R;
 import stanford.cs194.stanfood.authentication.Authentication;
+import stanford.cs194.stanfood.database.CloudPinEventCounter;
 import stanford.cs194.stanfood.database.CreateList;
 import stanford.cs194.stanfood.database.Database;
+import stanford.cs194.stanfood.database.PinSubscription;
+import stanford.cs194.stanfood.database.UploadQueue;
 import stanford.cs194.stanfood.fragments.BottomSheet;
 import stanford.cs194.stanfood.fragments.BottomSheetListView;
 import stanford.cs194.stanfood.fragments.MapClockFragment;
 import stanford.cs194.stanfood.fragments.NavigationDrawer;
 import stanford.cs194.stanfood.fragments.PopUpFragment;
 import stanford.cs194.stanfood.helpers.FirebaseInstanceIdAccessor;
+import stanford.cs194.stanfood.helpers.GeoHash;
+import stanford.cs194.stanfood.helpers.MarkerClusterRenderer;
+import stanford.cs194.stanfood.helpers.PinClusterer;
+import stanford.cs194.stanfood.helpers.PinDateRangeFilter;
+import stanford.cs194.stanfood.helpers.PinQuadTree;
 import stanford.cs194.stanfood.models.Food;
 import stanford.cs194.stanfood.models.Pin;
 
-public class MapsActivity extends AppCompatActivity implements OnMapReadyCallback, OnMarkerClickListener, GoogleMap.OnMapClickListener, GoogleMap.OnCameraMoveStartedListener {
+public class MapsActivity extends AppCompatActivity implements OnMapReadyCallback, OnMarkerClickListener, GoogleMap.OnMapClickListener, GoogleMap.OnCameraMoveStartedListener, GoogleMap.OnCameraIdleListener {
     private GoogleMap mMap;
     private SupportMapFragment mapFragment;
     private BottomSheet bottomSheet;
     private NavigationDrawer drawerLayout;
-    private HashMap<LatLng,String> eventStorage;
-    private HashMap<LatLng,Marker> markerStorage;
+    private HashMap<String,Pin> pinStorage;
+    private PinQuadTree visiblePins;
+    private MarkerClusterRenderer clusterRenderer;
+    private boolean renderScheduled;
+    private final double viewportMargin = 0.5;
+    private PinSubscription pinSubscription;
+    private HashSet<String> pinsAwaitingDateFilter;
+    private Handler mainHandler;
 
     private FusedLocationProviderClient mFusedLocationClient;
     private float distanceRange = 10000;
     private Authentication auth;
     private Database db;
+    private PinDateRangeFilter pinDateRangeFilter;
     private FirebaseInstanceIdAccessor instanceIdAccessor;
     private FragmentManager supportFragment;
     private String clickedPinId;
@@ -99,7 +112,6 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
     private Location myLoc;
     private Date startDate;
     private Date endDate;
-    private ArrayList<Marker> markersForRemoval;
 
     private LocationRequest locReq;
     private GoogleApiClient apiClient;
@@ -118,11 +130,15 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
 
         auth = new Authentication();
         db = new Database();
+        pinDateRangeFilter = new PinDateRangeFilter(new CloudPinEventCounter());
         instanceIdAccessor = new FirebaseInstanceIdAccessor(db, auth);
         instanceIdAccessor.uploadInstanceId();
+        UploadQueue.getInstance(db).resume();
 
-        eventStorage = new HashMap<>();
-        markerStorage = new HashMap<>();
+        pinStorage = new HashMap<>();
+        visiblePins = new PinQuadTree();
+        pinsAwaitingDateFilter = new HashSet<>();
+        mainHandler = new Handler();
 
         // set calendar to midnight of current day
         Calendar cal = new GregorianCalendar();
@@ -136,7 +152,6 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
         cal.add(Calendar.DATE, 7);
         endDate = cal.getTime();
 
-        markersForRemoval = new ArrayList<>();
         apiClient = new GoogleApiClient.Builder(getApplicationContext()).
                 addApi(LocationServices.API).build();
         apiClient.connect();
@@ -157,6 +172,33 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
         }
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // Resubscribe to the pins that were dropped in onStop
+        if (mMap != null && myLoc != null && pinSubscription == null) {
+            populatePins(myLoc);
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        if (pinSubscription != null) {
+            pinSubscription.remove();
+            pinSubscription = null;
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        pinDateRangeFilter.shutdown();
+        if (clusterRenderer != null) {
+            clusterRenderer.shutdown();
+        }
+    }
+
     /**
      * Manipulates the map once available.
      * This callback is triggered when the map is ready to be used.
@@ -169,6 +211,7 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
     @Override
     public void onMapReady(GoogleMap googleMap) {
         mMap = googleMap;
+        clusterRenderer = new MarkerClusterRenderer(this, mMap);
         //adds location marker
 
         try {
@@ -227,6 +270,7 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
         mMap.setOnMarkerClickListener(this);
         mMap.setOnMapClickListener(this);
         mMap.setOnCameraMoveStartedListener(this);
+        mMap.setOnCameraIdleListener(this);
 
         ImageButton clock_button = findViewById(R.id.map_clock_image_button);
         final MapClockFragment mapClockFragment = MapClockFragment.newInstance();
@@ -235,7 +279,10 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
             public void onSuccess(Date start, Date end) {
                 startDate = start;
                 endDate = end;
-                populatePins(myLoc);
+                // results computed for the previous date range are now stale
+                pinDateRangeFilter.cancel();
+                pinsAwaitingDateFilter.clear();
+                filterPinsByDateRange(pinStorage.keySet());
             }
         });
         clock_button.setOnClickListener(new View.OnClickListener() {
@@ -258,13 +305,32 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
 
     /**
      * Expand bottom info window when a pin is clicked.
+     * Clicking a cluster of pins zooms in until its pins are shown separately.
      *
      * @param marker - the pin that is clicked
-     * @return - true to indicate the action was successful
+     * @return - true to indicate the action was successful, false for markers that aren't
+     *           pins so they keep the default click behavior
      */
     @Override
     public boolean onMarkerClick(Marker marker) {
         LatLng location = marker.getPosition();
+        PinClusterer.Cluster cluster = (PinClusterer.Cluster) marker.getTag();
+        if (cluster == null) {
+            return false;
+        }
+        if (cluster.getSize() > 1) {
+            LatLngBounds bounds = new LatLngBounds(
+                    new LatLng(cluster.getMinLatitude(), cluster.getMinLongitude()),
+                    new LatLng(cluster.getMaxLatitude(), cluster.getMaxLongitude()));
+            float zoom = mMap.getCameraPosition().zoom;
+            if (bounds.northeast.equals(bounds.southwest)) {
+                // pins at the same spot never separate, zoom in one step at a time
+                mMap.animateCamera(CameraUpdateFactory.newLatLngZoom(location, zoom + 2));
+            } else {
+                mMap.animateCamera(CameraUpdateFactory.newLatLngBounds(bounds, 150));
+            }
+            return true;
+        }
 
         bottomSheet.initExpandedHeight();
         bottomSheet.expand();
@@ -273,12 +339,11 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
 
         BottomSheetListView eventListView = findViewById(R.id.eventList);
         ViewGroup bottomSheetContents = findViewById(R.id.bottom_sheet_contents);
-        ViewCompat.setNestedScrollingEnabled(eventListView, true);
 
         CreateList initRows = new CreateList(
                 db, eventListView, bottomSheetContents, supportFragment, startDate, endDate
         );
-        initRows.createLocationEventList(eventStorage.get(marker.getPosition()));
+        initRows.createLocationEventList(cluster.getPinIds().get(0));
 
         return true;
     }
@@ -294,6 +359,14 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
         }
     }
 
+    /**
+     * Redraw the pins in view when the camera settles.
+     */
+    @Override
+    public void onCameraIdle() {
+        scheduleRender();
+    }
+
     /**
      * Listen for when camera starts moving and collapse bottom sheet.
      * Only want to collapse bottom sheet when user drags the map. Ignore marker clicks.
@@ -428,13 +501,16 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
                         @Override
                         public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
                             String foodDescription = "";
+                            String foodImagePath = "";
                             for(DataSnapshot ds : dataSnapshot.getChildren()) {
                                 if(ds.hasChildren()){
                                     Food food = ds.getValue(Food.class);
                                     foodDescription = food.getDescription();
+                                    foodImagePath = food.getMediumPath() != null
+                                            ? food.getMediumPath() : food.getImagePath();
                                 }
                             }
-                            PopUpFragment.newInstance(clickedEventName, clickedLocationName, clickedTimeRange, clickedEventDescription, foodDescription)
+                            PopUpFragment.newInstance(clickedEventName, clickedLocationName, clickedTimeRange, clickedEventDescription, foodDescription, foodImagePath)
                                     .show(supportFragment, null);
                         }
 
@@ -449,46 +525,101 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
 
     /**
      * Populates the map with all pins within a distance range of the current location of
-     * the user by reading the Firebase database and comparing
-     * the current location with the location of every pin.
+     * the user. Only the geohash cells around the current location are read from Firebase,
+     * through a single subscription that is replaced when the user moves to other cells.
+     * Pins are then added, updated and removed one at a time as they change.
      * If a pin has no events associated with it, then it disappears from the map.
      */
     public void populatePins(final Location cur){
-        db.dbRef.child("pins").addValueEventListener(
-                new ValueEventListener() {
-                    @Override
-                    public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
-                        for(DataSnapshot ds : dataSnapshot.getChildren()){
-                            if(ds.hasChildren()){
-                                Pin curPin = ds.getValue(Pin.class);
-                                LatLng coordinate = curPin.getLocationCoordinate();
-                                Location loc = new Location(LocationManager.GPS_PROVIDER);
-                                loc.setLatitude(coordinate.latitude);
-                                loc.setLongitude(coordinate.longitude);
-                                if(cur.distanceTo(loc) < distanceRange &&
-                                        !eventStorage.containsKey(coordinate)){
-                                    Marker m = mMap.addMarker(new MarkerOptions().position(coordinate));
-                                    markerStorage.put(coordinate, m);
-                                    eventStorage.put(coordinate, ds.getKey());
-                                }
-                                if(curPin.getNumEvents() == 0){
-                                    Marker m = markerStorage.get(coordinate);
-                                    if(m != null) {
-                                        m.remove();
-                                        markerStorage.remove(coordinate);
-                                        eventStorage.remove(coordinate);
-                                    }
-                                }
-                            }
-                        }
-                        removePinsOutsideDateRange();
-                    }
-                    @Override
-                    public void onCancelled(@NonNull DatabaseError databaseError) {
-                        Log.d("ERROR",databaseError.toString());
-                    }
+        LatLng center = new LatLng(cur.getLatitude(), cur.getLongitude());
+        Set<String> cells = GeoHash.coveringCells(center.latitude, center.longitude, distanceRange);
+        if (pinSubscription != null) {
+            if (pinSubscription.getCells().equals(cells)) {
+                return;
+            }
+            pinSubscription.remove();
+        }
+        // results computed for the previous location are now stale
+        pinDateRangeFilter.cancel();
+        pinsAwaitingDateFilter.clear();
+        for (String pinId : pinStorage.keySet()) {
+            hidePin(pinId);
+        }
+        pinStorage.clear();
+
+        pinSubscription = db.subscribePinsInRadius(center, distanceRange, new Database.OnPinChangedListener() {
+            @Override
+            public void onPinAdded(String pinId, Pin pin) {
+                onPinChanged(pinId, pin);
+            }
+
+            @Override
+            public void onPinChanged(String pinId, Pin pin) {
+                pinStorage.put(pinId, pin);
+                if (pin.getNumEvents() == 0) {
+                    hidePin(pinId);
+                } else {
+                    filterPinsByDateRange(Collections.singleton(pinId));
                 }
-        );
+            }
+
+            @Override
+            public void onPinRemoved(String pinId, Pin pin) {
+                pinStorage.remove(pinId);
+                hidePin(pinId);
+            }
+        });
+    }
+
+    /**
+     * Displays the pin on the map.
+     */
+    private void showPin(String pinId, Pin pin){
+        LatLng coordinate = pin.getLocationCoordinate();
+        visiblePins.put(new PinClusterer.Item(pinId, coordinate.latitude, coordinate.longitude));
+        scheduleRender();
+    }
+
+    /**
+     * Removes the pin from the map if it is displayed.
+     */
+    private void hidePin(String pinId){
+        if (visiblePins.remove(pinId)) {
+            scheduleRender();
+        }
+    }
+
+    /**
+     * Reclusters the visible pins inside the camera bounds, plus a margin on each side so
+     * small pans don't uncover missing markers. Pins further away get no marker at all.
+     * Renders are batched until the next main loop iteration, so a burst of pin changes
+     * is clustered only once.
+     */
+    private void scheduleRender(){
+        if (renderScheduled || clusterRenderer == null) {
+            return;
+        }
+        renderScheduled = true;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                renderScheduled = false;
+                LatLngBounds bounds = mMap.getProjection().getVisibleRegion().latLngBounds;
+                double latMargin = (bounds.northeast.latitude - bounds.southwest.latitude) * viewportMargin;
+                double lngMargin = (bounds.northeast.longitude - bounds.southwest.longitude) * viewportMargin;
+                double minLng = bounds.southwest.longitude - lngMargin;
+                double maxLng = bounds.northeast.longitude + lngMargin;
+                if (bounds.southwest.longitude > bounds.northeast.longitude) {
+                    // the view crosses the antimeridian
+                    minLng = -180;
+                    maxLng = 180;
+                }
+                List<PinClusterer.Item> items = visiblePins.query(
+                        bounds.southwest.latitude - latMargin, bounds.northeast.latitude + latMargin,
+                        minLng, maxLng);
+                clusterRenderer.render(items, mMap.getCameraPosition().zoom);
+            }
+        });
     }
 
     /**
@@ -533,66 +664,44 @@ public class MapsActivity extends AppCompatActivity implements OnMapReadyCallbac
         rlp.bottomMargin = 25;
     }
 
-    private void removePinsOutsideDateRange(){
-        Thread t = new Thread(updatePinNumEventsRunnable(startDate, endDate));
-        t.start();
-        try {
-            t.join();
-            for(Marker m : markersForRemoval){
-                m.remove();
-            }
-            markersForRemoval.clear();
-        } catch (InterruptedException e) {
-            Log.d("ERROR", e.toString());
-        }
-    }
-    private int sendPostPinNumEventsInRange(Date start, Date end, String pinId){
-        String function_url = "https://us-central1-stanfood-e7255.cloudfunctions.net/getNumEvents";
-        try {
-            String params = "?";
-            params += "start="+String.valueOf(start.getTime());
-            params += "&end="+String.valueOf(end.getTime());
-            params += "&pinId="+pinId;
-            function_url += params;
-
-            URL url = new URL(function_url);
-            HttpsURLConnection con = (HttpsURLConnection) url.openConnection();
-            con.setRequestMethod("POST");
-            con.setDoOutput(true);
-
-            BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream()));
-            String inputLine;
-            StringBuffer response = new StringBuffer();
-
-            while ((inputLine = in.readLine()) != null) {
-                response.append(inputLine);
-            }
-            in.close();
-            JSONObject jsonResp = new JSONObject(response.toString());
-            return (int)jsonResp.get("count");
-        } catch (Exception e) {
-            Log.d("ERROR", e.toString());
+    /**
+     * Shows the pins that have events in the selected date range and hides the others.
+     * Pins are batched until the next main loop iteration, so a burst of pin changes
+     * results in a single count request made in the background.
+     */
+    private void filterPinsByDateRange(Collection<String> pinIds){
+        boolean scheduled = !pinsAwaitingDateFilter.isEmpty();
+        pinsAwaitingDateFilter.addAll(pinIds);
+        if (scheduled || pinsAwaitingDateFilter.isEmpty()) {
+            return;
         }
-        return 0;
-    }
-
-    private Runnable updatePinNumEventsRunnable(final Date start, final Date end){
-        return new Runnable() {
+        mainHandler.post(new Runnable() {
             @Override
             public void run() {
-                HashMap<LatLng,String> events = (HashMap) eventStorage.clone();
-                for(LatLng loc : events.keySet()){
-                    String pinId = eventStorage.get(loc);
-                    int numEvents = sendPostPinNumEventsInRange(start, end, pinId);
-                    if(numEvents == 0){
-                        Marker m = markerStorage.get(loc);
-                        markersForRemoval.add(m);
-                        markerStorage.remove(loc);
-                        eventStorage.remove(loc);
-                    }
+                final ArrayList<String> requested = new ArrayList<>(pinsAwaitingDateFilter);
+                pinsAwaitingDateFilter.clear();
+                if (requested.isEmpty()) {
+                    return;
                 }
-
+                pinDateRangeFilter.filter(requested, startDate, endDate,
+                        new PinDateRangeFilter.OnPinsFilteredListener() {
+                            @Override
+                            public void onPinsFiltered(List<String> emptyPinIds) {
+                                HashSet<String> emptyPins = new HashSet<>(emptyPinIds);
+                                for (String pinId : requested) {
+                                    Pin pin = pinStorage.get(pinId);
+                                    if (pin == null) {
+                                        continue;
+                                    }
+                                    if (emptyPins.contains(pinId) || pin.getNumEvents() == 0) {
+                                        hidePin(pinId);
+                                    } else {
+                                        showPin(pinId, pin);
+                                    }
+                                }
+                            }
+                        });
             }
-        };
+        });
     }
 }
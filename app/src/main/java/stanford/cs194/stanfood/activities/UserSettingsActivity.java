@@ -24,6 +24,7 @@ import java.util.GregorianCalendar;
 
 import stanford.cs194.stanfood.R;
 import stanford.cs194.stanfood.database.Database;
+import stanford.cs194.stanfood.helpers.TimeDateUtils;
 import stanford.cs194.stanfood.models.Setting;
 
 public class UserSettingsActivity extends AppCompatActivity {
@@ -116,8 +117,7 @@ public class UserSettingsActivity extends AppCompatActivity {
                         timeCal.set(Calendar.HOUR_OF_DAY, hourOfDay);
                         timeCal.set(Calendar.MINUTE, minute);
                         Date time = timeCal.getTime();
-                        String timePattern = "H:mm";
-                        SimpleDateFormat sdf = new SimpleDateFormat(timePattern);
+                        SimpleDateFormat sdf = TimeDateUtils.getFormat(TimeDateUtils.TIME_PATTERN);
                         ((TextInputEditText) v).setText(sdf.format(time));
                     }
                 }, hour, minute, false);
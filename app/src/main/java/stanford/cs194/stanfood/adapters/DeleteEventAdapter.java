@@ -2,72 +2,183 @@ package stanford.cs194.stanfood.adapters;
 
 import android.content.Context;
 import android.support.annotation.NonNull;
+import android.support.design.card.MaterialCardView;
+import android.support.v4.content.ContextCompat;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 
 import stanford.cs194.stanfood.R;
 import stanford.cs194.stanfood.database.Database;
+import stanford.cs194.stanfood.database.EventStore;
 import stanford.cs194.stanfood.helpers.TimeDateUtils;
 import stanford.cs194.stanfood.models.Event;
 
-public class DeleteEventAdapter extends ArrayAdapter {
-    private ArrayList<Event> events;
+public class DeleteEventAdapter extends RecyclerView.Adapter<DeleteEventAdapter.DeleteEventViewHolder> {
+    private EventStore events;
     private Context context;
     private Database db;
+    private HashSet<String> selectedEventIds;
+    private OnSelectionChangedListener selectionListener;
 
-    public DeleteEventAdapter(Context context, ArrayList<Event> events, Database db) {
-        super(context, R.layout.list_view, events);
+    public interface OnSelectionChangedListener {
+        void onSelectionChanged(int selectedCount);
+    }
+
+    public DeleteEventAdapter(Context context, EventStore events, Database db,
+                              OnSelectionChangedListener selectionListener) {
         this.context = context;
         this.events = events;
         this.db = db;
+        this.selectedEventIds = new HashSet<>();
+        this.selectionListener = selectionListener;
     }
 
-    @NonNull
-    public View getView(int position, final View view, @NonNull final ViewGroup parent) {
-        final LayoutInflater inflater = LayoutInflater.from(context);
-        final View rowView = inflater.inflate(R.layout.list_view, null, true);
+    /**
+     * Replaces the list of events, rebinding only the rows that changed, and the listener
+     * of the screen now showing them. Selected events that are no longer in the list are
+     * unselected, and the listener is always told the selection, since the screen resets
+     * its state on a refresh.
+     */
+    public void setEvents(EventStore newEvents, OnSelectionChangedListener selectionListener) {
+        DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new EventDiffCallback(events, newEvents));
+        events = newEvents;
+        this.selectionListener = selectionListener;
+        diff.dispatchUpdatesTo(this);
+
+        HashSet<String> remaining = new HashSet<>();
+        for(int row = 0; row < events.size(); row++) {
+            String eventId = events.getEventId(row);
+            if(selectedEventIds.contains(eventId)) remaining.add(eventId);
+        }
+        selectedEventIds = remaining;
+        notifySelectionChanged();
+    }
+
+    /**
+     * Shows rows appended to the end of the list, if it is still the list being displayed.
+     */
+    public void onEventsAppended(EventStore list, int start, int count) {
+        if(list != events || count == 0) return;
+        notifyItemRangeInserted(start, count);
+        notifySelectionChanged();
+    }
+
+    /**
+     * Returns the events selected with a long press, in list order.
+     */
+    public ArrayList<Event> getSelectedEvents() {
+        ArrayList<Event> selected = new ArrayList<>();
+        for(int row = 0; row < events.size(); row++) {
+            if(selectedEventIds.contains(events.getEventId(row))) selected.add(events.getEvent(row));
+        }
+        return selected;
+    }
 
-        // gets references to objects in the list_view.xml file
-        TextView eventName = rowView.findViewById(R.id.eventName);
-        TextView eventTimeStart = rowView.findViewById(R.id.eventTimeStart);
-        TextView eventDescription = rowView.findViewById(R.id.eventDescription);
+    @Override
+    public int getItemCount() {
+        return events.size();
+    }
 
-        final Event event = events.get(position);
-        String name = event.getName();
-        long time = event.getTimeStart();
-        long duration = event.getDuration();
-        String description = event.getDescription();
+    @NonNull
+    @Override
+    public DeleteEventViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View rowView = LayoutInflater.from(context).inflate(R.layout.list_view, parent, false);
+        return new DeleteEventViewHolder(rowView);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull DeleteEventViewHolder holder, int position) {
+        String name = events.getName(position);
+        long time = events.getTimeStart(position);
+        long duration = events.getDuration(position);
+        String description = events.getDescription(position);
 
         // sets the values of the objects to the value from the current event
         // TODO: Remove null check when we clear out data since some events don't have explicit name fields
-        if(name != null && !name.equals("")) eventName.setText(name);
-        else eventName.setText("N/A");
-
-        if(time != 0) eventTimeStart.setText(TimeDateUtils.getEventTimeRange(time, duration));
-        else eventTimeStart.setText("N/A");
-
-        if(!description.equals("")) eventDescription.setText(description);
-        else eventDescription.setText("N/A");
-
-        rowView.setOnClickListener(new View.OnClickListener(){
-            /**
-             * When list item is clicked on, delete event
-             * @param listItemView The list view to contain all of the event items
-             */
-            @Override
-            public void onClick(View listItemView) {
-                db.deleteEvent(event);
-                String text = "Event Deleted!\nRefresh View for Updated List.";
-                Toast toast = Toast.makeText(context, text, Toast.LENGTH_LONG);
-                toast.show();
-            }
-        });
-        return rowView;
+        if(name != null && !name.equals("")) holder.eventName.setText(name);
+        else holder.eventName.setText("N/A");
+
+        if(time != 0) holder.eventTimeStart.setText(TimeDateUtils.getEventTimeRange(time, duration));
+        else holder.eventTimeStart.setText("N/A");
+
+        if(description != null && !description.equals("")) holder.eventDescription.setText(description);
+        else holder.eventDescription.setText("N/A");
+
+        holder.setSelectedStyle(selectedEventIds.contains(events.getEventId(position)));
+    }
+
+    /**
+     * Tells the listener the selection, after any change to it or to the list.
+     */
+    private void notifySelectionChanged() {
+        if(selectionListener != null) {
+            selectionListener.onSelectionChanged(selectedEventIds.size());
+        }
+    }
+
+    class DeleteEventViewHolder extends RecyclerView.ViewHolder {
+        final TextView eventName;
+        final TextView eventTimeStart;
+        final TextView eventDescription;
+        final MaterialCardView eventCard;
+
+        DeleteEventViewHolder(View rowView) {
+            super(rowView);
+            // gets references to objects in the list_view.xml file
+            eventName = rowView.findViewById(R.id.eventName);
+            eventTimeStart = rowView.findViewById(R.id.eventTimeStart);
+            eventDescription = rowView.findViewById(R.id.eventDescription);
+            eventCard = rowView.findViewById(R.id.eventCard);
+
+            rowView.setOnClickListener(new View.OnClickListener(){
+                /**
+                 * When list item is clicked on, delete event
+                 * @param listItemView The list view to contain all of the event items
+                 */
+                @Override
+                public void onClick(View listItemView) {
+                    int position = getAdapterPosition();
+                    if(position == RecyclerView.NO_POSITION) return;
+                    Event event = events.getEvent(position);
+                    db.deleteEvent(event);
+                    // a deleted event can't be deleted again with the selection
+                    selectedEventIds.remove(event.getEventId());
+                    setSelectedStyle(false);
+                    notifySelectionChanged();
+                    String text = "Event Deleted!\nRefresh View for Updated List.";
+                    Toast toast = Toast.makeText(context, text, Toast.LENGTH_LONG);
+                    toast.show();
+                }
+            });
+            rowView.setOnLongClickListener(new View.OnLongClickListener() {
+                /**
+                 * When list item is long pressed, toggle whether it is selected for bulk deletion
+                 */
+                @Override
+                public boolean onLongClick(View listItemView) {
+                    int position = getAdapterPosition();
+                    if(position == RecyclerView.NO_POSITION) return false;
+                    String eventId = events.getEventId(position);
+                    boolean selected = !selectedEventIds.remove(eventId);
+                    if(selected) selectedEventIds.add(eventId);
+                    setSelectedStyle(selected);
+                    notifySelectionChanged();
+                    return true;
+                }
+            });
+        }
+
+        void setSelectedStyle(boolean selected) {
+            int color = selected ? R.color.selectedEventCard : android.R.color.white;
+            eventCard.setCardBackgroundColor(ContextCompat.getColor(context, color));
+        }
     }
-}
\ No newline at end of file
+}
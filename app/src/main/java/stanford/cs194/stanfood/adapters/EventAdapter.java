@@ -1,123 +1,215 @@
 package stanford.cs194.stanfood.adapters;
 
-import android.content.Context;
 import android.support.annotation.NonNull;
 import android.support.v4.app.FragmentManager;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
+import android.widget.ImageView;
 import android.widget.TextView;
 
 import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseError;
 import com.google.firebase.database.ValueEventListener;
 
-import java.util.ArrayList;
+import java.util.HashMap;
 
 import stanford.cs194.stanfood.R;
 import stanford.cs194.stanfood.database.Database;
+import stanford.cs194.stanfood.database.EventStore;
 import stanford.cs194.stanfood.fragments.PopUpFragment;
+import stanford.cs194.stanfood.helpers.ImageLoader;
 import stanford.cs194.stanfood.helpers.TimeDateUtils;
-import stanford.cs194.stanfood.models.Event;
 import stanford.cs194.stanfood.models.Food;
 
-public class EventAdapter extends ArrayAdapter {
+public class EventAdapter extends RecyclerView.Adapter<EventAdapter.EventViewHolder> {
 
     private Database db;
-    private ArrayList<Event> events;
-    private Context context;
+    private EventStore events;
 
     private FragmentManager supportFragment;
-    private ViewGroup bottomSheetContentsView;
+    private TextView bottomSheetHeader;
+    // food thumbnail urls by eventId; events without a photo aren't cached, since photos
+    // upload in the background and may be added after the event is shown
+    private HashMap<String, String> imagePaths;
+    private int thumbnailSize;
 
     public EventAdapter(
             Database db,
-            Context context,
-            ArrayList<Event> events,
+            EventStore events,
             ViewGroup bottomSheetContentsView,
             FragmentManager supportFragment
     ) {
-        super(context, R.layout.list_view, events);
         this.db = db;
-        this.context = context;
         this.events = events;
-        this.bottomSheetContentsView = bottomSheetContentsView;
+        this.bottomSheetHeader = bottomSheetContentsView.findViewById(R.id.bottom_sheet_header);
         this.supportFragment = supportFragment;
+        this.imagePaths = new HashMap<>();
+        this.thumbnailSize = bottomSheetContentsView.getResources()
+                .getDimensionPixelSize(R.dimen.event_image_thumbnail_size);
+        updateHeader();
+    }
+
+    /**
+     * Replaces the list of events, rebinding only the rows that changed, and the rows
+     * still without a photo, whose photo may have been uploaded since they were shown.
+     */
+    public void setEvents(EventStore newEvents) {
+        DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new EventDiffCallback(events, newEvents));
+        events = newEvents;
+        diff.dispatchUpdatesTo(this);
+        for(int row = 0; row < events.size(); row++) {
+            if(!imagePaths.containsKey(events.getEventId(row))) notifyItemChanged(row);
+        }
+        updateHeader();
+    }
+
+    /**
+     * Shows rows appended to the end of the list, if it is still the list being displayed.
+     */
+    public void onEventsAppended(EventStore list, int start, int count) {
+        if(list != events || count == 0) return;
+        notifyItemRangeInserted(start, count);
+    }
+
+    @Override
+    public int getItemCount() {
+        return events.size();
     }
 
     @NonNull
-    public View getView(int position, final View view, @NonNull final ViewGroup parent) {
-        final LayoutInflater inflater = LayoutInflater.from(context);
-        final View rowView = inflater.inflate(R.layout.list_view, null, true);
-
-        // gets references to objects in the list_view.xml file
-        TextView eventLocation = bottomSheetContentsView.findViewById(R.id.bottom_sheet_header);
-        TextView eventName = rowView.findViewById(R.id.eventName);
-        TextView eventTimeStart = rowView.findViewById(R.id.eventTimeStart);
-        TextView eventDescription = rowView.findViewById(R.id.eventDescription);
-
-        Event event = events.get(position);
-        String name = event.getName();
-        final String eventId = event.getEventId();
-        final String locationName = event.getLocationName();
-        long time = event.getTimeStart();
-        long duration = event.getDuration();
-        String description = event.getDescription();
+    @Override
+    public EventViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View rowView = LayoutInflater.from(parent.getContext()).inflate(R.layout.list_view, parent, false);
+        return new EventViewHolder(rowView);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull EventViewHolder holder, int position) {
+        String name = events.getName(position);
+        long time = events.getTimeStart(position);
+        long duration = events.getDuration(position);
+        String description = events.getDescription(position);
+        holder.eventId = events.getEventId(position);
 
         // sets the values of the objects to the value from the current event
         // TODO: Remove null check when we clear out data since some events don't have explicit name fields
-        if(name != null && !name.equals("")) eventName.setText(name);
-        else  eventName.setText("N/A");
-
-        if(locationName != null) eventLocation.setText(locationName);
-        else eventLocation.setText("N/A");
-
-        if(time != 0) eventTimeStart.setText(TimeDateUtils.getEventTimeRange(time, duration));
-        else eventTimeStart.setText("N/A");
-
-        if(!description.equals("")) eventDescription.setText(description);
-        else eventDescription.setText("N/A");
-
-        rowView.setOnClickListener(new View.OnClickListener(){
-            /**
-             * When list item is clicked on, display the event information.
-             * @param listItemView The list view to contain all of the event items
-             */
-            @Override
-            public void onClick(View listItemView) {
-                final String clickedEventName = ((TextView)listItemView.findViewById(R.id.eventName)).getText().toString();
-                final String clickedTimeRange = ((TextView)listItemView.findViewById(R.id.eventTimeStart)).getText().toString();
-                final String clickedEventDescription = ((TextView)listItemView.findViewById(R.id.eventDescription)).getText().toString();
-
-                final TextView bottomSheetHeader = bottomSheetContentsView.findViewById(R.id.bottom_sheet_header);
-                final String clickedLocationName = bottomSheetHeader.getText().toString();
-
-                db.dbRef.child("food").orderByChild("eventId").equalTo(eventId).addListenerForSingleValueEvent(
-                        new ValueEventListener() {
-                            @Override
-                            public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
-                                String foodDescription = "";
-                                for(DataSnapshot ds : dataSnapshot.getChildren()) {
-                                    if(ds.hasChildren()){
-                                        Food food = ds.getValue(Food.class);
-                                        foodDescription = food.getDescription();
-                                    }
-                                }
-                                PopUpFragment.newInstance(clickedEventName, clickedLocationName, clickedTimeRange, clickedEventDescription, foodDescription).show(supportFragment,null);
-                            }
+        if(name != null && !name.equals("")) holder.eventName.setText(name);
+        else holder.eventName.setText("N/A");
 
-                            @Override
-                            public void onCancelled(@NonNull DatabaseError databaseError) {
-                                Log.d("ERROR",databaseError.toString());
-                            }
+        if(time != 0) holder.eventTimeStart.setText(TimeDateUtils.getEventTimeRange(time, duration));
+        else holder.eventTimeStart.setText("N/A");
+
+        if(description != null && !description.equals("")) holder.eventDescription.setText(description);
+        else holder.eventDescription.setText("N/A");
+
+        bindImage(holder);
+    }
+
+    /**
+     * Shows the photo of the event's food in the row, looking up its url until the event
+     * has one.
+     */
+    private void bindImage(final EventViewHolder holder) {
+        final String eventId = holder.eventId;
+        String imagePath = imagePaths.get(eventId);
+        if(imagePath != null) {
+            ImageLoader.getInstance().load(imagePath, holder.eventImage, thumbnailSize);
+            return;
+        }
+        ImageLoader.getInstance().load(null, holder.eventImage, thumbnailSize);
+        db.dbRef.child("food").orderByChild("eventId").equalTo(eventId).addListenerForSingleValueEvent(
+                new ValueEventListener() {
+                    @Override
+                    public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
+                        String imagePath = "";
+                        for(DataSnapshot ds : dataSnapshot.getChildren()) {
+                            Food food = ds.getValue(Food.class);
+                            if(food == null) continue;
+                            // food stored before thumbnails existed only has the full photo
+                            if(food.getThumbnailPath() != null) imagePath = food.getThumbnailPath();
+                            else if(food.getImagePath() != null) imagePath = food.getImagePath();
+                        }
+                        if(!imagePath.equals("")) imagePaths.put(eventId, imagePath);
+                        // the row may have been rebound to another event in the meantime
+                        if(eventId.equals(holder.eventId)) {
+                            ImageLoader.getInstance().load(imagePath, holder.eventImage, thumbnailSize);
                         }
-                );
-            }
-        });
+                    }
+
+                    @Override
+                    public void onCancelled(@NonNull DatabaseError databaseError) {
+                        Log.d("ERROR",databaseError.toString());
+                    }
+                }
+        );
+    }
 
-        return rowView;
+    /**
+     * All events of the list are at the same pin, so the header shows the location of the first.
+     */
+    private void updateHeader() {
+        if(events.size() == 0) return;
+        String locationName = events.getLocationName(0);
+        if(locationName != null) bottomSheetHeader.setText(locationName);
+        else bottomSheetHeader.setText("N/A");
     }
 
+    class EventViewHolder extends RecyclerView.ViewHolder {
+        final TextView eventName;
+        final TextView eventTimeStart;
+        final TextView eventDescription;
+        final ImageView eventImage;
+        String eventId;
+
+        EventViewHolder(View rowView) {
+            super(rowView);
+            // gets references to objects in the list_view.xml file
+            eventName = rowView.findViewById(R.id.eventName);
+            eventTimeStart = rowView.findViewById(R.id.eventTimeStart);
+            eventDescription = rowView.findViewById(R.id.eventDescription);
+            eventImage = rowView.findViewById(R.id.eventImage);
+
+            rowView.setOnClickListener(new View.OnClickListener(){
+                /**
+                 * When list item is clicked on, display the event information.
+                 * @param listItemView The list view to contain all of the event items
+                 */
+                @Override
+                public void onClick(View listItemView) {
+                    final String clickedEventName = eventName.getText().toString();
+                    final String clickedTimeRange = eventTimeStart.getText().toString();
+                    final String clickedEventDescription = eventDescription.getText().toString();
+                    final String clickedLocationName = bottomSheetHeader.getText().toString();
+
+                    db.dbRef.child("food").orderByChild("eventId").equalTo(eventId).addListenerForSingleValueEvent(
+                            new ValueEventListener() {
+                                @Override
+                                public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
+                                    String foodDescription = "";
+                                    String foodImagePath = "";
+                                    for(DataSnapshot ds : dataSnapshot.getChildren()) {
+                                        if(ds.hasChildren()){
+                                            Food food = ds.getValue(Food.class);
+                                            foodDescription = food.getDescription();
+                                            foodImagePath = food.getMediumPath() != null
+                                                    ? food.getMediumPath() : food.getImagePath();
+                                        }
+                                    }
+                                    PopUpFragment.newInstance(clickedEventName, clickedLocationName, clickedTimeRange, clickedEventDescription, foodDescription, foodImagePath).show(supportFragment,null);
+                                }
+
+                                @Override
+                                public void onCancelled(@NonNull DatabaseError databaseError) {
+                                    Log.d("ERROR",databaseError.toString());
+                                }
+                            }
+                    );
+                }
+            });
+        }
+    }
 }
@@ -0,0 +1,49 @@
+package stanford.cs194.stanfood.adapters;
+
+import android.support.v7.util.DiffUtil;
+
+import stanford.cs194.stanfood.database.EventStore;
+
+/**
+ * Compares two event lists for DiffUtil: rows are the same item if they have the same
+ * eventId, and only need rebinding if a displayed field changed.
+ * Reads the stores' columns directly, so diffing creates no Events.
+ */
+class EventDiffCallback extends DiffUtil.Callback {
+    private final EventStore oldEvents;
+    private final EventStore newEvents;
+
+    EventDiffCallback(EventStore oldEvents, EventStore newEvents) {
+        this.oldEvents = oldEvents;
+        this.newEvents = newEvents;
+    }
+
+    @Override
+    public int getOldListSize() {
+        return oldEvents.size();
+    }
+
+    @Override
+    public int getNewListSize() {
+        return newEvents.size();
+    }
+
+    @Override
+    public boolean areItemsTheSame(int oldPosition, int newPosition) {
+        String oldId = oldEvents.getEventId(oldPosition);
+        return oldId != null && oldId.equals(newEvents.getEventId(newPosition));
+    }
+
+    @Override
+    public boolean areContentsTheSame(int oldPosition, int newPosition) {
+        return oldEvents.getTimeStart(oldPosition) == newEvents.getTimeStart(newPosition)
+                && oldEvents.getDuration(oldPosition) == newEvents.getDuration(newPosition)
+                && equal(oldEvents.getName(oldPosition), newEvents.getName(newPosition))
+                && equal(oldEvents.getDescription(oldPosition), newEvents.getDescription(newPosition))
+                && equal(oldEvents.getLocationName(oldPosition), newEvents.getLocationName(newPosition));
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
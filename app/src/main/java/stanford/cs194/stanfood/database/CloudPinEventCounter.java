@@ -0,0 +1,71 @@
+package stanford.cs194.stanfood.database;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.net.ssl.HttpsURLConnection;
+
+/**
+ * PinEventCounter backed by the getNumEventsBatch cloud function.
+ */
+public class CloudPinEventCounter implements PinEventCounter {
+    final private String functionUrl = "https://us-central1-stanfood-e7255.cloudfunctions.net/getNumEventsBatch";
+    // blocking socket reads can't be interrupted, so a stalled request must time out itself
+    final private int TIMEOUT_MS = 5000;
+
+    @Override
+    public HashMap<String, Integer> countEvents(List<String> pinIds, long start, long end) {
+        HashMap<String, Integer> counts = new HashMap<>();
+        if (pinIds.isEmpty()) {
+            return counts;
+        }
+        HttpsURLConnection con = null;
+        try {
+            JSONObject params = new JSONObject();
+            params.put("pinIds", new JSONArray(pinIds));
+            params.put("start", start);
+            params.put("end", end);
+
+            URL url = new URL(functionUrl);
+            con = (HttpsURLConnection) url.openConnection();
+            con.setConnectTimeout(TIMEOUT_MS);
+            con.setReadTimeout(TIMEOUT_MS);
+            con.setRequestMethod("POST");
+            con.setRequestProperty("Content-Type", "application/json");
+            con.setDoOutput(true);
+            OutputStream out = con.getOutputStream();
+            out.write(params.toString().getBytes("UTF-8"));
+            out.close();
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream()));
+            String inputLine;
+            StringBuilder response = new StringBuilder();
+
+            while ((inputLine = in.readLine()) != null) {
+                response.append(inputLine);
+            }
+            in.close();
+            JSONObject jsonCounts = new JSONObject(response.toString()).getJSONObject("counts");
+            Iterator<String> keys = jsonCounts.keys();
+            while (keys.hasNext()) {
+                String pinId = keys.next();
+                counts.put(pinId, jsonCounts.getInt(pinId));
+            }
+        } catch (Exception e) {
+            Log.d("ERROR", e.toString());
+        } finally {
+            if (con != null) con.disconnect();
+        }
+        return counts;
+    }
+}
@@ -2,30 +2,23 @@ package stanford.cs194.stanfood.database;
 
 import android.support.annotation.NonNull;
 import android.support.v4.app.FragmentManager;
-import android.util.Log;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.view.ViewGroup;
-import android.widget.Adapter;
-import android.widget.ListAdapter;
 
 import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.Marker;
-import com.google.firebase.database.DataSnapshot;
-import com.google.firebase.database.DatabaseError;
-import com.google.firebase.database.ValueEventListener;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 
 import stanford.cs194.stanfood.adapters.DeleteEventAdapter;
 import stanford.cs194.stanfood.adapters.EventAdapter;
 import stanford.cs194.stanfood.fragments.BottomSheetListView;
-import stanford.cs194.stanfood.models.Event;
 
 public class CreateList {
     private Database db;
-    private ArrayList<Event> events;
+    private EventStore events;
     private BottomSheetListView eventListView;
     private ViewGroup bottomSheetContentsView;
     private FragmentManager supportFragment;
@@ -33,13 +26,19 @@ public class CreateList {
     private Date startDate;
     private Date endDate;
 
+    // load the next page when the last visible row is this close to the end of the list
+    final private int prefetchDistance = 5;
+    private EventPager pager;
+    private boolean userList;
+    private DeleteEventAdapter.OnSelectionChangedListener selectionListener;
+
     // without date filtering
     public CreateList(Database db, BottomSheetListView eventListView,
                       ViewGroup bottomSheetContentsView, FragmentManager supportFragment) {
         this.db = db;
         this.eventListView = eventListView;
         this.bottomSheetContentsView = bottomSheetContentsView;
-        this.events = new ArrayList<>();
+        this.events = new EventStore();
         this.supportFragment = supportFragment;
     }
 
@@ -50,7 +49,7 @@ public class CreateList {
         this.db = db;
         this.eventListView = eventListView;
         this.bottomSheetContentsView = bottomSheetContentsView;
-        this.events = new ArrayList<>();
+        this.events = new EventStore();
         this.supportFragment = supportFragment;
         this.startDate = startDate;
         this.endDate = endDate;
@@ -58,76 +57,97 @@ public class CreateList {
 
     /**
      * Creates a list of all events with Pin Ids corresponding to the current marker location.
-     * Creates an EventAdapter with this list to make a list view with all events
+     * When doing date filtering, only events of the pin within the date range are read, using
+     * the composite pinTimeStart key.
+     * Events are loaded a page at a time: an EventAdapter is created with the first page (or
+     * the adapter already attached to the list view is updated), and further pages are
+     * loaded as the list is scrolled towards its end.
      */
     public void createLocationEventList(final String pinId){
-        db.dbRef.child("events").orderByChild("pinId").equalTo(pinId).
-                addListenerForSingleValueEvent(
-                new ValueEventListener() {
-                    @Override
-                    public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
-                        for(DataSnapshot ds : dataSnapshot.getChildren()) {
-                            Event event = ds.getValue(Event.class);
-                            Date d = new Date(event.getTimeStart());
-                            // if doing date filtering, make sure event date lies within range
-                            if(startDate != null && endDate != null &&
-                                    (d.before(startDate) || d.after(endDate)))
-                                continue;
-                            event.setEventId(ds.getKey());
-                            events.add(event);
-                        }
-                        Collections.sort(events);
-                        Adapter rowCells = new EventAdapter(
-                                db,
-                                eventListView.getContext(),
-                                events,
-                                bottomSheetContentsView,
-                                supportFragment
-                        );
-                        eventListView.setAdapter((ListAdapter) rowCells);
-                    }
-
-                    @Override
-                    public void onCancelled(@NonNull DatabaseError databaseError) {
-                        Log.d("ERROR",databaseError.toString());
-                    }
-                }
-        );
+        pager = EventPager.forPin(db, pinId, startDate, endDate);
+        loadNextPage();
     }
 
     /**
      * Creates a list of all events with User Ids corresponding to the current logged-in user.
-     * Creates a DeleteEventAdapter with this list to make a list view with all events
+     * Event ids are read from the user_events/ index a page at a time, and only the events
+     * of each page are fetched.
+     * Creates a DeleteEventAdapter with the first page to make a list view with all events
+     * @param selectionListener - notified when events are selected for bulk deletion
      */
-    public void createUserEventList(final String userId){
-        db.dbRef.child("events").addListenerForSingleValueEvent(
-                new ValueEventListener() {
-                    @Override
-                    public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
-                        for(DataSnapshot ds : dataSnapshot.getChildren()){
-                            if(ds.hasChildren()){
-                                Event event = ds.getValue(Event.class);
-                                if (event != null && event.getUserId() != null && event.getUserId().equals(userId)) {
-                                    event.setEventId(ds.getKey());
-                                    events.add(event);
-                                }
-                            }
-                        }
-                        Collections.sort(events);
-                        ListAdapter rowCells = new DeleteEventAdapter(
-                                eventListView.getContext(),
-                                events,
-                                db
-                        );
-                        eventListView.setAdapter(rowCells);
-                    }
+    public void createUserEventList(final String userId,
+                                    final DeleteEventAdapter.OnSelectionChangedListener selectionListener){
+        this.selectionListener = selectionListener;
+        this.userList = true;
+        pager = EventPager.forUser(db, userId);
+        loadNextPage();
+    }
+
+    private void loadNextPage(){
+        final int start = events.size();
+        pager.loadNextPage(events, new EventPager.OnPageLoadedListener() {
+            @Override
+            public void onPageLoaded(int added, boolean hasMore) {
+                if(start == 0) {
+                    showFirstPage();
+                } else if(userList) {
+                    ((DeleteEventAdapter) eventListView.getAdapter()).onEventsAppended(events, start, added);
+                } else {
+                    ((EventAdapter) eventListView.getAdapter()).onEventsAppended(events, start, added);
+                }
+                // a page of deleted events adds nothing, so there is nothing to scroll to
+                if(added == 0 && hasMore) loadNextPage();
+            }
+        });
+    }
 
-                    @Override
-                    public void onCancelled(@NonNull DatabaseError databaseError) {
-                        Log.d("ERROR", databaseError.toString());
-                    }
+    /**
+     * Shows the first page in the list view and loads the next pages on scroll.
+     */
+    private void showFirstPage(){
+        if(userList) {
+            setUserEventAdapter();
+        } else {
+            setLocationEventAdapter();
+        }
+        eventListView.clearOnScrollListeners();
+        eventListView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+                if(pager.hasMore() && !pager.isLoading()
+                        && layoutManager.findLastVisibleItemPosition() >= events.size() - prefetchDistance) {
+                    loadNextPage();
                 }
+            }
+        });
+    }
+
+    private void setLocationEventAdapter(){
+        if(eventListView.getAdapter() instanceof EventAdapter) {
+            ((EventAdapter) eventListView.getAdapter()).setEvents(events);
+            return;
+        }
+        EventAdapter rowCells = new EventAdapter(
+                db,
+                events,
+                bottomSheetContentsView,
+                supportFragment
         );
+        eventListView.setAdapter(rowCells);
     }
-}
 
+    private void setUserEventAdapter(){
+        if(eventListView.getAdapter() instanceof DeleteEventAdapter) {
+            ((DeleteEventAdapter) eventListView.getAdapter()).setEvents(events, selectionListener);
+            return;
+        }
+        DeleteEventAdapter rowCells = new DeleteEventAdapter(
+                eventListView.getContext(),
+                events,
+                db,
+                selectionListener
+        );
+        eventListView.setAdapter(rowCells);
+    }
+}
@@ -1,7 +1,5 @@
 package stanford.cs194.stanfood.database;
 
-import android.location.Address;
-import android.location.Geocoder;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
@@ -12,15 +10,16 @@ import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseError;
 import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
-import com.google.firebase.database.MutableData;
-import com.google.firebase.database.Transaction;
+import com.google.firebase.database.Query;
 import com.google.firebase.database.ValueEventListener;
 
-import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
-import stanford.cs194.stanfood.App;
+import stanford.cs194.stanfood.helpers.GeoHash;
 import stanford.cs194.stanfood.helpers.LatLngWrapper;
 import stanford.cs194.stanfood.models.Event;
 import stanford.cs194.stanfood.models.Food;
@@ -30,13 +29,21 @@ import stanford.cs194.stanfood.models.User;
 
 public class Database {
     final private String dbPath = "https://stanfood-e7255.firebaseio.com/";
-    final private String stanfordLocSuffix = " Stanford, CA 94305";
+    final private int pinLocationPrecision = 12;
     private FirebaseDatabase database;
     public DatabaseReference dbRef;
+    private Gazetteer gazetteer;
 
     public Database(){
         database = FirebaseDatabase.getInstance(dbPath);
         dbRef = database.getReference();
+        gazetteer = Gazetteer.getInstance(dbRef);
+    }
+
+    public interface OnPinChangedListener {
+        void onPinAdded(String pinId, Pin pin);
+        void onPinChanged(String pinId, Pin pin);
+        void onPinRemoved(String pinId, Pin pin);
     }
 
     /**
@@ -100,53 +107,202 @@ public class Database {
     }
 
     /**
-     * Creates a new pin in the pins table
+     * Creates a new pin in the pins table.
+     * The pin is stored with the geohash of its location so it can be found by subscribePinsInRadius,
+     * and registered in the pin_locations index so createEvent can find it by coordinate.
      */
     public String createPin(LatLng loc, String locationName){
+        HashMap<String, Object> updates = new HashMap<>();
+        String pinId = addPinUpdates(updates, loc, locationName);
+        dbRef.updateChildren(updates);
+        return pinId;
+    }
+
+    /**
+     * Adds the writes creating a new pin, and its pin_locations index entry, to a
+     * multi-path update. Returns the new pinId.
+     */
+    private String addPinUpdates(Map<String, Object> updates, LatLng loc, String locationName){
+        String pinId = dbRef.child("pins").push().getKey();
         LatLngWrapper locW = new LatLngWrapper(loc.latitude, loc.longitude);
-        return createEntry("pins", new Pin(locW, locationName));
+        Pin pin = new Pin(locW, locationName);
+        pin.setGeohash(GeoHash.encode(loc.latitude, loc.longitude));
+        updates.put("pins/" + pinId, pin);
+        updates.put("pin_locations/" + getPinLocationKey(loc), pinId);
+        return pinId;
     }
 
     /**
-     * Creates a new event in the events table.
-     * First searches to see if there is a pin at the associated location
-     * if not, one is created. pinId is then retrieved, allowing the
-     * event to be created
+     * Returns the key of a coordinate in the pin_locations index.
+     * The key is a full precision geohash (cells of a few centimeters), so the same geocoded
+     * location always maps to the same key.
      */
-    public void createEvent(final String name, final String description, final String locationName,
-                            final long timeStart, final long duration, final String foodDescription,
-                            final String userId, final String imagePath){
-        final LatLng loc = getLocationFromName(locationName);
-        dbRef.child("pins").addListenerForSingleValueEvent(
-            new ValueEventListener() {
+    private String getPinLocationKey(LatLng loc){
+        return GeoHash.encode(loc.latitude, loc.longitude, pinLocationPrecision);
+    }
+
+    /**
+     * Listens to all pins within radiusMeters of center.
+     * Only the geohash cells covering the circle are read, using a range query on each
+     * cell prefix, and pins in those cells that fall outside the radius are dropped.
+     * The listener receives each pin once when it is loaded, then only the pins that change.
+     * The returned subscription must be removed once the pins are no longer needed.
+     */
+    public PinSubscription subscribePinsInRadius(final LatLng center, final double radiusMeters,
+                                                 final OnPinChangedListener listener){
+        Set<String> cells = GeoHash.coveringCells(center.latitude, center.longitude, radiusMeters);
+        PinSubscription subscription = new PinSubscription(cells);
+        for(String cell : cells){
+            Query query = dbRef.child("pins").orderByChild("geohash").startAt(cell).endAt(cell + "\uf8ff");
+            ChildEventListener childListener = query.addChildEventListener(new ChildEventListener() {
                 @Override
-                public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
-                    String pinId = null;
-                    for(DataSnapshot ds : dataSnapshot.getChildren()){
-                        if(ds.hasChildren()) {
-                            Pin curPin = ds.getValue(Pin.class);
-                            LatLng coordinate = curPin.getLocationCoordinate();
-                            if (loc.equals(coordinate)) {
-                                pinId = ds.getKey();
-                                ds.getRef().child("numEvents").setValue(curPin.getNumEvents()+1);
-                                break;
-                            }
-                        }
+                public void onChildAdded(@NonNull DataSnapshot dataSnapshot, @Nullable String s) {
+                    Pin pin = getPinInRadius(dataSnapshot);
+                    if(pin != null) {
+                        listener.onPinAdded(dataSnapshot.getKey(), pin);
+                    }
+                }
+
+                @Override
+                public void onChildChanged(@NonNull DataSnapshot dataSnapshot, @Nullable String s) {
+                    Pin pin = getPinInRadius(dataSnapshot);
+                    if(pin != null) {
+                        listener.onPinChanged(dataSnapshot.getKey(), pin);
                     }
-                    if(pinId == null) {
-                        pinId = createPin(loc, locationName);
+                }
+
+                @Override
+                public void onChildRemoved(@NonNull DataSnapshot dataSnapshot) {
+                    Pin pin = getPinInRadius(dataSnapshot);
+                    if(pin != null) {
+                        listener.onPinRemoved(dataSnapshot.getKey(), pin);
                     }
-                    String eventId = createEntry("events", new Event(pinId, name, description,
-                            locationName, timeStart, duration, userId));
-                    createFood(eventId, foodDescription, imagePath);
+                }
+
+                @Override
+                public void onChildMoved(@NonNull DataSnapshot dataSnapshot, @Nullable String s) {
+
                 }
 
                 @Override
                 public void onCancelled(@NonNull DatabaseError databaseError) {
                     Log.d("ERROR", databaseError.toString());
                 }
+
+                private Pin getPinInRadius(DataSnapshot ds){
+                    if(!ds.hasChildren()) return null;
+                    Pin pin = ds.getValue(Pin.class);
+                    LatLng coordinate = pin.getLocationCoordinate();
+                    double distance = GeoHash.distanceMeters(center.latitude, center.longitude,
+                            coordinate.latitude, coordinate.longitude);
+                    return distance < radiusMeters ? pin : null;
+                }
+            });
+            subscription.add(query, childListener);
+        }
+        return subscription;
+    }
+
+    public interface OnEventCreatedListener {
+        /**
+         * @param error - null once the event is stored, otherwise why it couldn't be
+         */
+        void onEventCreated(@Nullable String error);
+    }
+
+    /**
+     * Creates a new event in the events table.
+     * The location name is resolved to coordinates through the gazetteer, then the pin at
+     * that location is looked up in the pin_locations index. The event, its food item,
+     * its index entries, its pin counter entry and the pin if it is new are then written
+     * in a single multi-path update, so either all of them are stored or none.
+     * The food item is stored under foodId, from newFoodId, without an image; a photo is
+     * added with setFoodImagePaths, so its upload can run alongside these lookups.
+     * The listener is called once the event is stored or one of the stages failed.
+     */
+    public void createEvent(final String name, final String description, final String locationName,
+                            final long timeStart, final long duration, final String foodDescription,
+                            final String userId, final String foodId,
+                            final OnEventCreatedListener listener){
+        gazetteer.getLocation(locationName, new Gazetteer.OnLocationFoundListener() {
+            @Override
+            public void onLocationFound(@Nullable final LatLng loc) {
+                if(loc == null) {
+                    Log.d("ERROR", "createEvent: unknown location " + locationName);
+                    listener.onEventCreated("Unknown location: " + locationName);
+                    return;
+                }
+                dbRef.child("pin_locations").child(getPinLocationKey(loc)).addListenerForSingleValueEvent(
+                    new ValueEventListener() {
+                        @Override
+                        public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
+                            String pinId = dataSnapshot.getValue(String.class);
+                            Event event = new Event(null, name, description, locationName,
+                                    timeStart, duration, userId);
+                            HashMap<String, Object> updates = new HashMap<>();
+                            if(pinId == null) {
+                                pinId = addPinUpdates(updates, loc, locationName);
+                            }
+                            event.setPinId(pinId);
+                            commitEvent(updates, event, foodId, new Food(null, foodDescription, null),
+                                    listener);
+                        }
+
+                        @Override
+                        public void onCancelled(@NonNull DatabaseError databaseError) {
+                            Log.d("ERROR", databaseError.toString());
+                            listener.onEventCreated(databaseError.getMessage());
+                        }
+                    }
+                );
             }
-        );
+        });
+    }
+
+    /**
+     * Returns an id for a food item that hasn't been written yet.
+     * Push keys are generated on the device, so this doesn't touch the network.
+     */
+    public String newFoodId(){
+        return dbRef.child("food").push().getKey();
+    }
+
+    /**
+     * Resolves a location name ahead of createEvent, so the event isn't held up by geocoding.
+     */
+    public void prefetchLocation(String locationName){
+        gazetteer.getLocation(locationName, new Gazetteer.OnLocationFoundListener() {
+            @Override
+            public void onLocationFound(@Nullable LatLng location) {}
+        });
+    }
+
+    /**
+     * Adds the event, its food item, its user_events entry and its pin counter entry to the
+     * pin updates and writes everything in one updateChildren call.
+     */
+    private void commitEvent(Map<String, Object> updates, Event event, String foodId, Food food,
+                             final OnEventCreatedListener listener){
+        String eventId = dbRef.child("events").push().getKey();
+        event.setPinTimeStart(Event.getPinTimeKey(event.getPinId(), event.getTimeStart()));
+        food.setEventId(eventId);
+        updates.put("events/" + eventId, event);
+        updates.put("food/" + foodId, food);
+        // the value is the start time, so a user's events can be paged in time order
+        updates.put("user_events/" + event.getUserId() + "/" + eventId, event.getTimeStart());
+        updates.put(getPinCounterPath(event.getPinId(), eventId), 1);
+        dbRef.updateChildren(updates, new DatabaseReference.CompletionListener() {
+            @Override
+            public void onComplete(@Nullable DatabaseError databaseError,
+                                   @NonNull DatabaseReference databaseReference) {
+                if(databaseError != null) {
+                    Log.d("ERROR", "createEvent: " + databaseError.toString());
+                    listener.onEventCreated(databaseError.getMessage());
+                } else {
+                    listener.onEventCreated(null);
+                }
+            }
+        });
     }
 
     /**
@@ -156,90 +312,187 @@ public class Database {
         createEntry("food", new Food(eventId, description, imagePath));
     }
 
+    public interface OnImagePathSetListener {
+        /**
+         * @param stored - false if the food item doesn't exist (yet) or the write failed
+         */
+        void onImagePathSet(boolean stored);
+    }
+
     /**
-     * Deletes an event in the events/ table,
-     * Decrements the number of events in the corresponding pin by 1, and
-     * Deletes all corresponding food items in the food/ table.
+     * Sets the photo of a food item, in all three sizes, if the food item has been written.
+     * The check keeps a photo that finishes uploading before its event is stored, or after
+     * it is deleted, from leaving a food item with nothing but image paths.
+     * storagePath is where the photo is stored, so it can be deleted with the food item;
+     * it is null for a photo reused from image_hashes, which is deleted through its hash.
      */
-    public void deleteEvent(final Event event){
-        final String eventId = event.getEventId();
-        final String pinId = event.getPinId();
-        dbRef.child("pins").child(pinId).child("numEvents").runTransaction(new Transaction.Handler() {
-            @NonNull
+    public void setFoodImagePaths(final String foodId, String thumbnailPath, String mediumPath,
+                                  String imagePath, @Nullable String storagePath,
+                                  @Nullable String imageHash, final OnImagePathSetListener listener){
+        final DatabaseReference foodRef = dbRef.child("food").child(foodId);
+        final HashMap<String, Object> updates = new HashMap<>();
+        updates.put("thumbnailPath", thumbnailPath);
+        updates.put("mediumPath", mediumPath);
+        updates.put("imagePath", imagePath);
+        updates.put("storagePath", storagePath);
+        updates.put("imageHash", imageHash);
+        foodRef.child("eventId").addListenerForSingleValueEvent(new ValueEventListener() {
             @Override
-            public Transaction.Result doTransaction(@NonNull MutableData mutableData) {
-                // Set new event number value and report transaction success
-                Integer numEvents = mutableData.getValue(Integer.class);
-                if (numEvents != null) {
-                    mutableData.setValue(numEvents - 1);
+            public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
+                if(!dataSnapshot.exists()) {
+                    listener.onImagePathSet(false);
+                    return;
                 }
-                return Transaction.success(mutableData);
+                foodRef.updateChildren(updates, new DatabaseReference.CompletionListener() {
+                    @Override
+                    public void onComplete(@Nullable DatabaseError databaseError,
+                                           @NonNull DatabaseReference databaseReference) {
+                        if(databaseError != null) {
+                            Log.d("ERROR", databaseError.toString());
+                        }
+                        listener.onImagePathSet(databaseError == null);
+                    }
+                });
             }
 
             @Override
-            public void onComplete(@Nullable DatabaseError databaseError, boolean b,
-                                   @Nullable DataSnapshot dataSnapshot) {
-                Log.d("deleteEvent", "deleteEvent:" + databaseError);
+            public void onCancelled(@NonNull DatabaseError databaseError) {
+                Log.d("ERROR", databaseError.toString());
+                listener.onImagePathSet(false);
             }
         });
+    }
 
-        dbRef.child("events").child(eventId).removeValue();
-        deleteEventFood(eventId);
+    public interface OnImageFoundListener {
+        /**
+         * @param image - the stored image's download urls by size and its storagePath,
+         *              or null if no image with the hash was stored
+         */
+        void onImageFound(@Nullable Map<String, String> image);
     }
 
     /**
-     * Deletes all food items associated with an event.
+     * Looks up an already stored image by the SHA-256 of its content in image_hashes.
      */
-    private void deleteEventFood(final String eventId) {
-        // Delete all food items associated with this event
-        dbRef.child("food").orderByChild("eventId").equalTo(eventId)
-                .addChildEventListener(new ChildEventListener() {
-                    @Override
-                    public void onChildAdded(@NonNull DataSnapshot dataSnapshot, @Nullable String s) {
-                        dataSnapshot.getRef().removeValue();
+    public void findImageByHash(String imageHash, final OnImageFoundListener listener){
+        dbRef.child("image_hashes").child(imageHash).addListenerForSingleValueEvent(
+            new ValueEventListener() {
+                @Override
+                public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
+                    if(!dataSnapshot.exists()) {
+                        listener.onImageFound(null);
+                        return;
                     }
-
-                    @Override
-                    public void onChildChanged(@NonNull DataSnapshot dataSnapshot, @Nullable String s) {
-
+                    HashMap<String, String> image = new HashMap<>();
+                    for(DataSnapshot ds : dataSnapshot.getChildren()) {
+                        image.put(ds.getKey(), ds.getValue(String.class));
                     }
+                    listener.onImageFound(image);
+                }
 
-                    @Override
-                    public void onChildRemoved(@NonNull DataSnapshot dataSnapshot) {
+                @Override
+                public void onCancelled(@NonNull DatabaseError databaseError) {
+                    Log.d("ERROR", databaseError.toString());
+                    listener.onImageFound(null);
+                }
+            }
+        );
+    }
 
-                    }
+    public interface OnEventsDeletedListener {
+        void onEventsDeleted(boolean success);
+    }
 
-                    @Override
-                    public void onChildMoved(@NonNull DataSnapshot dataSnapshot, @Nullable String s) {
+    /**
+     * Deletes an event, see deleteEvents.
+     */
+    public void deleteEvent(Event event){
+        deleteEvents(Collections.singletonList(event), null);
+    }
 
-                    }
+    /**
+     * Deletes events from the events/ table together with their food items,
+     * user_events/ index entries and pin counter entries.
+     * The food keys are read once, then all the records are removed in a single
+     * multi-path update.
+     */
+    public void deleteEvents(List<Event> events, @Nullable final OnEventsDeletedListener listener){
+        if(events.isEmpty()) {
+            if(listener != null) listener.onEventsDeleted(true);
+            return;
+        }
+        final HashMap<String, Object> updates = new HashMap<>();
+        for(Event event : events) {
+            updates.put("events/" + event.getEventId(), null);
+            if(event.getUserId() != null) {
+                updates.put("user_events/" + event.getUserId() + "/" + event.getEventId(), null);
+            }
+            if(event.getPinId() != null) {
+                updates.put(getPinCounterPath(event.getPinId(), event.getEventId()), null);
+            }
+        }
 
+        final int[] pending = {events.size()};
+        final boolean[] failed = {false};
+        final Runnable commit = new Runnable() {
+            @Override
+            public void run() {
+                if(--pending[0] > 0) return;
+                if(failed[0]) {
+                    if(listener != null) listener.onEventsDeleted(false);
+                    return;
+                }
+                dbRef.updateChildren(updates, new DatabaseReference.CompletionListener() {
                     @Override
-                    public void onCancelled(@NonNull DatabaseError databaseError) {
-                        Log.d("deleteFood", databaseError.toString());
+                    public void onComplete(@Nullable DatabaseError databaseError,
+                                           @NonNull DatabaseReference databaseReference) {
+                        if(databaseError != null) {
+                            Log.d("ERROR", "deleteEvents: " + databaseError.toString());
+                        }
+                        if(listener != null) listener.onEventsDeleted(databaseError == null);
                     }
                 });
+            }
+        };
+
+        for(Event event : events) {
+            addEventFoodRemovals(event.getEventId(), updates, failed, commit);
+        }
     }
 
     /**
-     * getLocationFromName: uses Geocoder package to return coordinates from a locationName
-     * Currently only handles conversions of Stanford locations and building names
-     * @return null if the location name does not correspond to a recognizable Stanford location.
-     * Returns a LatLng object corresponding to the location if one exists.
+     * Reads the keys of the food items of an event once and adds their removal to updates.
      */
-    private LatLng getLocationFromName(String locationName){
-        Geocoder geo = new Geocoder(App.getContext(), Locale.US);
-        String fullAddress = locationName + stanfordLocSuffix;
-        LatLng loc = null;
-        try {
-            List<Address> addresses = geo.getFromLocationName(fullAddress, 1);
-            if(addresses != null && !addresses.isEmpty()){
-                Address address = addresses.get(0);
-                loc = new LatLng(address.getLatitude(), address.getLongitude());
+    private void addEventFoodRemovals(String eventId, final Map<String, Object> updates,
+                                      final boolean[] failed, final Runnable done){
+        dbRef.child("food").orderByChild("eventId").equalTo(eventId).addListenerForSingleValueEvent(
+            new ValueEventListener() {
+                @Override
+                public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
+                    for(DataSnapshot ds : dataSnapshot.getChildren()) {
+                        updates.put("food/" + ds.getKey(), null);
+                    }
+                    done.run();
+                }
+
+                @Override
+                public void onCancelled(@NonNull DatabaseError databaseError) {
+                    Log.d("ERROR", databaseError.toString());
+                    failed[0] = true;
+                    done.run();
+                }
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return loc;
+        );
+    }
+
+    /**
+     * Returns the path of an event's entry in the counter of its pin.
+     * pin_counters/{pinId} holds a 1 for each live event of the pin, so creating or deleting
+     * an event sets or clears its own entry in the same update as the event, and concurrent
+     * writers never touch the same node. pins/{pinId}/numEvents is kept equal to the sum of
+     * the entries by the aggregatePinCounters function.
+     */
+    private String getPinCounterPath(String pinId, String eventId){
+        return "pin_counters/" + pinId + "/" + eventId;
     }
 }
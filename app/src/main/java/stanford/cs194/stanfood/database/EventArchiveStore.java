@@ -0,0 +1,31 @@
+package stanford.cs194.stanfood.database;
+
+import java.util.List;
+
+import stanford.cs194.stanfood.models.Event;
+import stanford.cs194.stanfood.models.Food;
+
+/**
+ * Backend used by EventArchiver to move expired events out of the live tables.
+ * All calls block and must not be made on the UI thread.
+ */
+public interface EventArchiveStore {
+
+    /**
+     * Returns up to limit live events that ended before now, with their eventId set.
+     */
+    List<Event> getExpiredEvents(long now, int limit);
+
+    /**
+     * Returns the live food items of an event, with their foodId set.
+     */
+    List<Food> getFood(String eventId);
+
+    /**
+     * Moves the events and food items into the given archive partition and removes them
+     * from the live tables, along with the events' user_events entries and pin counter
+     * entries, as one atomic write.
+     * @return true if the write succeeded
+     */
+    boolean archive(String partition, List<Event> events, List<Food> food);
+}
@@ -0,0 +1,83 @@
+package stanford.cs194.stanfood.database;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import stanford.cs194.stanfood.models.Event;
+import stanford.cs194.stanfood.models.Food;
+
+/**
+ * Moves expired events and their food items out of the live tables into an archive
+ * partitioned by the month the event started (events_archive/{yyyyMM}), so live queries
+ * only touch current events. Each archived event's pin counter entry is removed in the
+ * same write, so pin counts stay exact without a recount.
+ * In production the scheduled checkPinEvents cloud function does this against Firebase;
+ * this runner does the same against any EventArchiveStore, e.g. LocalEventArchiveStore.
+ */
+public class EventArchiver {
+    public static final int BATCH_SIZE = 100;
+
+    private final EventArchiveStore store;
+
+    public EventArchiver(EventArchiveStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Returns the archive partition of an event, the UTC month it started in (yyyyMM).
+     */
+    public static String getPartition(Event event) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.US);
+        calendar.setTimeInMillis(event.getTimeStart());
+        return String.format(Locale.US, "%04d%02d",
+                calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH) + 1);
+    }
+
+    /**
+     * Archives all events that ended before now, in batches of BATCH_SIZE.
+     * Blocks, so it must not be called on the UI thread.
+     * @return the number of archived events
+     */
+    public int archiveExpired(long now) {
+        int archived = 0;
+        while (true) {
+            List<Event> expired = store.getExpiredEvents(now, BATCH_SIZE);
+            if (expired.isEmpty() || !archiveBatch(expired)) break;
+            archived += expired.size();
+            if (expired.size() < BATCH_SIZE) break;
+        }
+        return archived;
+    }
+
+    /**
+     * Archives one batch, one store write per partition.
+     * @return false if a write failed
+     */
+    private boolean archiveBatch(List<Event> expired) {
+        LinkedHashMap<String, ArrayList<Event>> partitions = new LinkedHashMap<>();
+        for (Event event : expired) {
+            String partition = getPartition(event);
+            ArrayList<Event> partitionEvents = partitions.get(partition);
+            if (partitionEvents == null) {
+                partitionEvents = new ArrayList<>();
+                partitions.put(partition, partitionEvents);
+            }
+            partitionEvents.add(event);
+        }
+        for (Map.Entry<String, ArrayList<Event>> entry : partitions.entrySet()) {
+            ArrayList<Food> food = new ArrayList<>();
+            for (Event event : entry.getValue()) {
+                food.addAll(store.getFood(event.getEventId()));
+            }
+            if (!store.archive(entry.getKey(), entry.getValue(), food)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,182 @@
+package stanford.cs194.stanfood.database;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.ValueEventListener;
+
+import java.util.ArrayList;
+import java.util.Date;
+
+import stanford.cs194.stanfood.models.Event;
+
+/**
+ * Loads a time-ordered list of events one page at a time into an EventStore.
+ * Each page is a query starting at a cursor, the sort value and key of the last row
+ * loaded, limited to PAGE_SIZE rows; pages are appended in order, so the store never
+ * needs sorting.
+ * Pin lists page over events/ ordered by pinTimeStart, whose keys are time ordered within
+ * a pin. User lists page over user_events/{userId} ordered by value, the event's timeStart,
+ * and then fetch each event of the page.
+ */
+public class EventPager {
+    public static final int PAGE_SIZE = 20;
+
+    private final DatabaseReference eventsRef;
+    private final Query orderedQuery;
+    private final String orderByChild;
+    private final boolean isIndex;
+
+    private Object cursorValue;
+    private String cursorKey;
+    private boolean loading;
+    private boolean exhausted;
+
+    public interface OnPageLoadedListener {
+        /**
+         * @param added - number of events appended to the store
+         * @param hasMore - false once the last page has been loaded
+         */
+        void onPageLoaded(int added, boolean hasMore);
+    }
+
+    private EventPager(DatabaseReference eventsRef, Query orderedQuery, @Nullable String orderByChild,
+                       boolean isIndex, Object startValue) {
+        this.eventsRef = eventsRef;
+        this.orderedQuery = orderedQuery;
+        this.orderByChild = orderByChild;
+        this.isIndex = isIndex;
+        this.cursorValue = startValue;
+    }
+
+    /**
+     * Pages over the events of a pin, optionally only those starting between start and end.
+     */
+    public static EventPager forPin(Database db, String pinId, @Nullable Date start, @Nullable Date end) {
+        String startKey = start != null ? Event.getPinTimeKey(pinId, start.getTime()) : pinId + "_";
+        String endKey = end != null ? Event.getPinTimeKey(pinId, end.getTime()) : pinId + "_\uf8ff";
+        DatabaseReference eventsRef = db.dbRef.child("events");
+        Query query = eventsRef.orderByChild("pinTimeStart").endAt(endKey);
+        return new EventPager(eventsRef, query, "pinTimeStart", false, startKey);
+    }
+
+    /**
+     * Pages over the events created by a user.
+     */
+    public static EventPager forUser(Database db, String userId) {
+        Query query = db.dbRef.child("user_events").child(userId).orderByValue();
+        return new EventPager(db.dbRef.child("events"), query, null, true, null);
+    }
+
+    public boolean hasMore() {
+        return !exhausted;
+    }
+
+    public boolean isLoading() {
+        return loading;
+    }
+
+    /**
+     * Appends the next page of events to the store. Does nothing if a page is already
+     * loading or all pages have been loaded.
+     */
+    public void loadNextPage(final EventStore events, final OnPageLoadedListener listener) {
+        if (loading || exhausted) return;
+        loading = true;
+
+        // the cursor row itself is returned again, so one extra row is requested
+        final int limit = cursorKey == null ? PAGE_SIZE : PAGE_SIZE + 1;
+        getPageQuery().limitToFirst(limit).addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
+                ArrayList<DataSnapshot> page = new ArrayList<>();
+                for (DataSnapshot ds : dataSnapshot.getChildren()) {
+                    if (!ds.getKey().equals(cursorKey)) page.add(ds);
+                }
+                exhausted = dataSnapshot.getChildrenCount() < limit;
+                if (!page.isEmpty()) {
+                    DataSnapshot last = page.get(page.size() - 1);
+                    cursorKey = last.getKey();
+                    cursorValue = orderByChild == null ? last.getValue() : last.child(orderByChild).getValue();
+                }
+                if (isIndex) {
+                    fetchEvents(page, events, listener);
+                } else {
+                    for (DataSnapshot ds : page) {
+                        events.add(ds);
+                    }
+                    finishPage(page.size(), listener);
+                }
+            }
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError databaseError) {
+                Log.d("ERROR", databaseError.toString());
+                loading = false;
+            }
+        });
+    }
+
+    private Query getPageQuery() {
+        if (cursorValue == null) return orderedQuery;
+        if (cursorValue instanceof Number) {
+            return orderedQuery.startAt(((Number) cursorValue).doubleValue(), cursorKey);
+        }
+        if (cursorValue instanceof Boolean) {
+            return orderedQuery.startAt((Boolean) cursorValue, cursorKey);
+        }
+        return orderedQuery.startAt(cursorValue.toString(), cursorKey);
+    }
+
+    /**
+     * Reads the events of a page of index entries and appends them in page order.
+     * Entries of events that no longer exist are skipped.
+     */
+    private void fetchEvents(final ArrayList<DataSnapshot> page, final EventStore events,
+                             final OnPageLoadedListener listener) {
+        final DataSnapshot[] fetched = new DataSnapshot[page.size()];
+        final int[] pending = {page.size()};
+        if (pending[0] == 0) {
+            finishPage(0, listener);
+            return;
+        }
+        for (int i = 0; i < page.size(); i++) {
+            final int index = i;
+            eventsRef.child(page.get(i).getKey()).addListenerForSingleValueEvent(new ValueEventListener() {
+                @Override
+                public void onDataChange(@NonNull DataSnapshot eventSnapshot) {
+                    if (eventSnapshot.hasChildren()) fetched[index] = eventSnapshot;
+                    onEventFetched();
+                }
+
+                @Override
+                public void onCancelled(@NonNull DatabaseError databaseError) {
+                    Log.d("ERROR", databaseError.toString());
+                    onEventFetched();
+                }
+
+                private void onEventFetched() {
+                    if (--pending[0] > 0) return;
+                    int added = 0;
+                    for (DataSnapshot eventSnapshot : fetched) {
+                        if (eventSnapshot != null) {
+                            events.add(eventSnapshot);
+                            added++;
+                        }
+                    }
+                    finishPage(added, listener);
+                }
+            });
+        }
+    }
+
+    private void finishPage(int added, OnPageLoadedListener listener) {
+        loading = false;
+        listener.onPageLoaded(added, !exhausted);
+    }
+}
@@ -0,0 +1,134 @@
+package stanford.cs194.stanfood.database;
+
+import com.google.firebase.database.DataSnapshot;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import stanford.cs194.stanfood.models.Event;
+
+/**
+ * Column-oriented store for large lists of events.
+ * Each field is kept in its own array: times in long[] and strings in String[], with
+ * pinId, locationName and userId interned since many events share them. Rows stay in the
+ * order they were added, which EventPager keeps in time order. Adapters and their diff
+ * callback read the columns of a row directly, so binding and diffing rows allocates
+ * nothing; an Event is only created for a row with getEvent, e.g. to delete it.
+ * Not thread-safe; used from the main thread like the Firebase callbacks that fill it.
+ */
+public class EventStore {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final HashMap<String, String> stringPool = new HashMap<>();
+    private String[] eventIds = new String[INITIAL_CAPACITY];
+    private String[] pinIds = new String[INITIAL_CAPACITY];
+    private String[] names = new String[INITIAL_CAPACITY];
+    private String[] descriptions = new String[INITIAL_CAPACITY];
+    private String[] locationNames = new String[INITIAL_CAPACITY];
+    private String[] userIds = new String[INITIAL_CAPACITY];
+    private long[] timeStarts = new long[INITIAL_CAPACITY];
+    private long[] durations = new long[INITIAL_CAPACITY];
+    private int size;
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+        stringPool.clear();
+        Arrays.fill(eventIds, null);
+        Arrays.fill(pinIds, null);
+        Arrays.fill(names, null);
+        Arrays.fill(descriptions, null);
+        Arrays.fill(locationNames, null);
+        Arrays.fill(userIds, null);
+    }
+
+    /**
+     * Appends an event read from events/{eventId} without mapping it to an Event first.
+     */
+    public void add(DataSnapshot eventSnapshot) {
+        Long timeStart = eventSnapshot.child("timeStart").getValue(Long.class);
+        Long duration = eventSnapshot.child("duration").getValue(Long.class);
+        add(eventSnapshot.getKey(),
+                eventSnapshot.child("pinId").getValue(String.class),
+                eventSnapshot.child("name").getValue(String.class),
+                eventSnapshot.child("description").getValue(String.class),
+                eventSnapshot.child("locationName").getValue(String.class),
+                eventSnapshot.child("userId").getValue(String.class),
+                timeStart == null ? 0 : timeStart,
+                duration == null ? 0 : duration);
+    }
+
+    public void add(String eventId, String pinId, String name, String description,
+                    String locationName, String userId, long timeStart, long duration) {
+        ensureCapacity(size + 1);
+        eventIds[size] = eventId;
+        pinIds[size] = intern(pinId);
+        names[size] = name;
+        descriptions[size] = description;
+        locationNames[size] = intern(locationName);
+        userIds[size] = intern(userId);
+        timeStarts[size] = timeStart;
+        durations[size] = duration;
+        size++;
+    }
+
+    public String getEventId(int row) {
+        return eventIds[row];
+    }
+
+    public String getName(int row) {
+        return names[row];
+    }
+
+    public String getDescription(int row) {
+        return descriptions[row];
+    }
+
+    public String getLocationName(int row) {
+        return locationNames[row];
+    }
+
+    public long getTimeStart(int row) {
+        return timeStarts[row];
+    }
+
+    public long getDuration(int row) {
+        return durations[row];
+    }
+
+    /**
+     * Creates an Event from a row.
+     */
+    public Event getEvent(int row) {
+        Event event = new Event(pinIds[row], names[row], descriptions[row], locationNames[row],
+                timeStarts[row], durations[row], userIds[row]);
+        event.setEventId(eventIds[row]);
+        return event;
+    }
+
+    private String intern(String value) {
+        if (value == null) return null;
+        String pooled = stringPool.get(value);
+        if (pooled == null) {
+            stringPool.put(value, value);
+            pooled = value;
+        }
+        return pooled;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= timeStarts.length) return;
+        int newCapacity = Math.max(capacity, timeStarts.length * 2);
+        eventIds = Arrays.copyOf(eventIds, newCapacity);
+        pinIds = Arrays.copyOf(pinIds, newCapacity);
+        names = Arrays.copyOf(names, newCapacity);
+        descriptions = Arrays.copyOf(descriptions, newCapacity);
+        locationNames = Arrays.copyOf(locationNames, newCapacity);
+        userIds = Arrays.copyOf(userIds, newCapacity);
+        timeStarts = Arrays.copyOf(timeStarts, newCapacity);
+        durations = Arrays.copyOf(durations, newCapacity);
+    }
+}
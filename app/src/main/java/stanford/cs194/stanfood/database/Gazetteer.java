@@ -0,0 +1,209 @@
+package stanford.cs194.stanfood.database;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.location.Address;
+import android.location.Geocoder;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.ValueEventListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import stanford.cs194.stanfood.App;
+import stanford.cs194.stanfood.helpers.LatLngWrapper;
+
+/**
+ * Table of Stanford location names (R.array.location_list) to coordinates.
+ * The table lives under gazetteer/ in Firebase, where it is seeded by the seedGazetteer
+ * function and is read-only for clients. A copy is kept on the device in SharedPreferences,
+ * so lookups are served from memory even before the shared table has loaded.
+ * Names missing from both are geocoded on a background thread, once the shared table has
+ * loaded or taken too long to, and the result is only kept in memory.
+ * All methods must be called from the main thread.
+ */
+public class Gazetteer {
+    final private String stanfordLocSuffix = " Stanford, CA 94305";
+    // offline, the shared table's listener doesn't fire until the connection is back
+    final private long SHARED_TABLE_TIMEOUT_MS = 5000;
+    private static Gazetteer instance;
+
+    private final HashMap<String, LatLng> locations;
+    // geocoded on this device, never written to the shared or local table
+    private final HashMap<String, LatLng> geocodedLocations;
+    // lookups waiting for the shared table to load
+    private final ArrayList<Runnable> pendingLookups;
+    private boolean sharedTableLoaded;
+    private final SharedPreferences prefs;
+    private final DatabaseReference gazetteerRef;
+    private final ExecutorService executor;
+    private final Handler mainHandler;
+
+    public interface OnLocationFoundListener {
+        /**
+         * @param location - coordinates of the location, or null if the name is not
+         *                 a recognizable Stanford location
+         */
+        void onLocationFound(@Nullable LatLng location);
+    }
+
+    public static Gazetteer getInstance(DatabaseReference dbRef) {
+        if (instance == null) {
+            instance = new Gazetteer(dbRef.child("gazetteer"));
+        }
+        return instance;
+    }
+
+    private Gazetteer(DatabaseReference gazetteerRef) {
+        this.gazetteerRef = gazetteerRef;
+        this.locations = new HashMap<>();
+        this.geocodedLocations = new HashMap<>();
+        this.pendingLookups = new ArrayList<>();
+        this.prefs = App.getContext().getSharedPreferences("gazetteer", Context.MODE_PRIVATE);
+        this.executor = Executors.newSingleThreadExecutor();
+        this.mainHandler = new Handler(Looper.getMainLooper());
+        loadLocalTable();
+        loadSharedTable();
+    }
+
+    /**
+     * Looks up the coordinates of a location name.
+     * The listener is called immediately if the name is in the table, otherwise once the
+     * shared table has loaded, or the name has been geocoded in the background.
+     */
+    public void getLocation(final String locationName, final OnLocationFoundListener listener) {
+        String key = getKey(locationName);
+        LatLng location = locations.get(key);
+        if (location == null) {
+            location = geocodedLocations.get(key);
+        }
+        if (location != null) {
+            listener.onLocationFound(location);
+            return;
+        }
+        if (!sharedTableLoaded) {
+            pendingLookups.add(new Runnable() {
+                @Override
+                public void run() {
+                    getLocation(locationName, listener);
+                }
+            });
+            return;
+        }
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                final LatLng geocoded = geocode(locationName);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (geocoded != null) {
+                            geocodedLocations.put(getKey(locationName), geocoded);
+                        }
+                        listener.onLocationFound(geocoded);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Firebase keys may not contain '.', '#', '$', '[', ']' or '/'.
+     * The seedGazetteer function builds its keys the same way.
+     */
+    private String getKey(String locationName) {
+        return locationName.replaceAll("[.#$\\[\\]/]", "_");
+    }
+
+    private void loadLocalTable() {
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            String[] coordinates = String.valueOf(entry.getValue()).split(",");
+            try {
+                locations.put(entry.getKey(), new LatLng(Double.parseDouble(coordinates[0]),
+                        Double.parseDouble(coordinates[1])));
+            } catch (RuntimeException e) {
+                Log.d("ERROR", e.toString());
+            }
+        }
+    }
+
+    /**
+     * Replaces the table with the shared one, then runs the lookups that waited for it.
+     * If the shared table can't be read, or doesn't load in time, the lookups run against
+     * the local copy, falling back to the Geocoder; the table is still replaced once it loads.
+     */
+    private void loadSharedTable() {
+        mainHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (!sharedTableLoaded) onSharedTableLoaded();
+            }
+        }, SHARED_TABLE_TIMEOUT_MS);
+        gazetteerRef.addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
+                SharedPreferences.Editor editor = prefs.edit().clear();
+                locations.clear();
+                for (DataSnapshot ds : dataSnapshot.getChildren()) {
+                    LatLngWrapper location = ds.getValue(LatLngWrapper.class);
+                    if (location != null) {
+                        locations.put(ds.getKey(), location.getLatLng());
+                        editor.putString(ds.getKey(), location.getLatitude() + "," + location.getLongitude());
+                    }
+                }
+                editor.apply();
+                onSharedTableLoaded();
+            }
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError databaseError) {
+                Log.d("ERROR", databaseError.toString());
+                onSharedTableLoaded();
+            }
+        });
+    }
+
+    private void onSharedTableLoaded() {
+        sharedTableLoaded = true;
+        ArrayList<Runnable> lookups = new ArrayList<>(pendingLookups);
+        pendingLookups.clear();
+        for (Runnable lookup : lookups) {
+            lookup.run();
+        }
+    }
+
+    /**
+     * Uses Geocoder package to return coordinates from a locationName.
+     * Blocks on the network, so it must not be called on the main thread.
+     */
+    private LatLng geocode(String locationName) {
+        Geocoder geo = new Geocoder(App.getContext(), Locale.US);
+        String fullAddress = locationName + stanfordLocSuffix;
+        LatLng loc = null;
+        try {
+            List<Address> addresses = geo.getFromLocationName(fullAddress, 1);
+            if (addresses != null && !addresses.isEmpty()) {
+                Address address = addresses.get(0);
+                loc = new LatLng(address.getLatitude(), address.getLongitude());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return loc;
+    }
+}
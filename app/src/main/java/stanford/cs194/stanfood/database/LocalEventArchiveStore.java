@@ -0,0 +1,161 @@
+package stanford.cs194.stanfood.database;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+import stanford.cs194.stanfood.models.Event;
+import stanford.cs194.stanfood.models.Food;
+
+/**
+ * In-memory EventArchiveStore mirroring the events/, food/, user_events/, pin_counters/
+ * and events_archive/ tables. Stands in for Firebase when running EventArchiver in tests.
+ */
+public class LocalEventArchiveStore implements EventArchiveStore {
+    private final LinkedHashMap<String, Event> events = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Food> food = new LinkedHashMap<>();
+    private final HashMap<String, HashSet<String>> userEvents = new HashMap<>();
+    private final HashMap<String, HashMap<String, Integer>> pinCounters = new HashMap<>();
+    private final HashMap<String, HashMap<String, Event>> archivedEvents = new HashMap<>();
+    private final HashMap<String, HashMap<String, Food>> archivedFood = new HashMap<>();
+    private boolean failWrites;
+
+    /**
+     * Adds a live event with its user_events and pin counter entries, like createEvent.
+     * The event must have its eventId set.
+     */
+    public synchronized void addEvent(Event event) {
+        String eventId = event.getEventId();
+        events.put(eventId, event);
+        if (event.getUserId() != null) {
+            HashSet<String> ids = userEvents.get(event.getUserId());
+            if (ids == null) {
+                ids = new HashSet<>();
+                userEvents.put(event.getUserId(), ids);
+            }
+            ids.add(eventId);
+        }
+        if (event.getPinId() != null) {
+            HashMap<String, Integer> entries = pinCounters.get(event.getPinId());
+            if (entries == null) {
+                entries = new HashMap<>();
+                pinCounters.put(event.getPinId(), entries);
+            }
+            entries.put(eventId, 1);
+        }
+    }
+
+    /**
+     * Adds a live food item. The food item must have its foodId set.
+     */
+    public synchronized void addFood(Food item) {
+        food.put(item.getFoodId(), item);
+    }
+
+    /**
+     * Makes archive() fail without writing anything, like a rejected multi-path update.
+     */
+    public synchronized void setFailWrites(boolean failWrites) {
+        this.failWrites = failWrites;
+    }
+
+    public synchronized List<Event> getLiveEvents() {
+        return new ArrayList<>(events.values());
+    }
+
+    public synchronized List<Food> getLiveFood() {
+        return new ArrayList<>(food.values());
+    }
+
+    public synchronized List<Event> getArchivedEvents(String partition) {
+        HashMap<String, Event> archived = archivedEvents.get(partition);
+        return archived == null ? new ArrayList<Event>() : new ArrayList<>(archived.values());
+    }
+
+    public synchronized List<Food> getArchivedFood(String partition) {
+        HashMap<String, Food> archived = archivedFood.get(partition);
+        return archived == null ? new ArrayList<Food>() : new ArrayList<>(archived.values());
+    }
+
+    /**
+     * Returns the eventIds in a user's user_events entry.
+     */
+    public synchronized Set<String> getUserEvents(String userId) {
+        HashSet<String> ids = userEvents.get(userId);
+        return ids == null ? new HashSet<String>() : new HashSet<>(ids);
+    }
+
+    /**
+     * Returns the event count of a pin as aggregatePinCounters sums it, 0 once the
+     * counter node is gone.
+     */
+    public synchronized int getPinEventCount(String pinId) {
+        HashMap<String, Integer> entries = pinCounters.get(pinId);
+        if (entries == null) return 0;
+        int total = 0;
+        for (Integer count : entries.values()) {
+            total += count;
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized List<Event> getExpiredEvents(long now, int limit) {
+        ArrayList<Event> expired = new ArrayList<>();
+        for (Event event : events.values()) {
+            if (expired.size() == limit) break;
+            if (event.eventExpired(now)) {
+                expired.add(event);
+            }
+        }
+        return expired;
+    }
+
+    @Override
+    public synchronized List<Food> getFood(String eventId) {
+        ArrayList<Food> eventFood = new ArrayList<>();
+        for (Food item : food.values()) {
+            if (eventId.equals(item.getEventId())) {
+                eventFood.add(item);
+            }
+        }
+        return eventFood;
+    }
+
+    @Override
+    public synchronized boolean archive(String partition, List<Event> events, List<Food> food) {
+        if (failWrites) return false;
+        HashMap<String, Event> partitionEvents = archivedEvents.get(partition);
+        if (partitionEvents == null) {
+            partitionEvents = new HashMap<>();
+            archivedEvents.put(partition, partitionEvents);
+        }
+        HashMap<String, Food> partitionFood = archivedFood.get(partition);
+        if (partitionFood == null) {
+            partitionFood = new HashMap<>();
+            archivedFood.put(partition, partitionFood);
+        }
+        for (Event event : events) {
+            String eventId = event.getEventId();
+            partitionEvents.put(eventId, event);
+            this.events.remove(eventId);
+            HashSet<String> ids = userEvents.get(event.getUserId());
+            if (ids != null && ids.remove(eventId) && ids.isEmpty()) {
+                userEvents.remove(event.getUserId());
+            }
+            HashMap<String, Integer> entries = pinCounters.get(event.getPinId());
+            if (entries != null && entries.remove(eventId) != null && entries.isEmpty()) {
+                // like Firebase, the node disappears with its last child
+                pinCounters.remove(event.getPinId());
+            }
+        }
+        for (Food item : food) {
+            partitionFood.put(item.getFoodId(), item);
+            this.food.remove(item.getFoodId());
+        }
+        return true;
+    }
+}
@@ -0,0 +1,39 @@
+package stanford.cs194.stanfood.database;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import stanford.cs194.stanfood.models.Event;
+
+/**
+ * In-memory PinEventCounter over a fixed set of events.
+ * Stands in for the cloud function in tests and offline runs.
+ */
+public class LocalPinEventCounter implements PinEventCounter {
+    private final ArrayList<Event> events = new ArrayList<>();
+
+    public synchronized void addEvent(Event event) {
+        events.add(event);
+    }
+
+    public synchronized void clear() {
+        events.clear();
+    }
+
+    @Override
+    public synchronized HashMap<String, Integer> countEvents(List<String> pinIds, long start, long end) {
+        HashMap<String, Integer> counts = new HashMap<>();
+        for (String pinId : pinIds) {
+            counts.put(pinId, 0);
+        }
+        for (Event event : events) {
+            Integer count = counts.get(event.getPinId());
+            long time = event.getTimeStart();
+            if (count != null && time >= start && time <= end) {
+                counts.put(event.getPinId(), count + 1);
+            }
+        }
+        return counts;
+    }
+}
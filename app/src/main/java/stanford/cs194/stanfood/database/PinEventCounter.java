@@ -0,0 +1,17 @@
+package stanford.cs194.stanfood.database;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Counts the events of many pins within a time range in one request.
+ */
+public interface PinEventCounter {
+
+    /**
+     * Returns the number of events starting between start and end (inclusive, in ms)
+     * for each of the given pins. Pins that could not be counted are left out of the result.
+     * This call blocks and must not be made on the UI thread.
+     */
+    HashMap<String, Integer> countEvents(List<String> pinIds, long start, long end);
+}
@@ -0,0 +1,41 @@
+package stanford.cs194.stanfood.database;
+
+import com.google.firebase.database.ChildEventListener;
+import com.google.firebase.database.Query;
+
+import java.util.ArrayList;
+import java.util.Set;
+
+/**
+ * Handle to the listeners registered by Database.subscribePinsInRadius.
+ * Call remove() when the pins are no longer displayed so Firebase stops streaming them.
+ */
+public class PinSubscription {
+    private final Set<String> cells;
+    private final ArrayList<Query> queries = new ArrayList<>();
+    private final ArrayList<ChildEventListener> listeners = new ArrayList<>();
+
+    PinSubscription(Set<String> cells) {
+        this.cells = cells;
+    }
+
+    void add(Query query, ChildEventListener listener) {
+        queries.add(query);
+        listeners.add(listener);
+    }
+
+    /**
+     * Returns the geohash cells this subscription listens to.
+     */
+    public Set<String> getCells() {
+        return cells;
+    }
+
+    public void remove() {
+        for (int i = 0; i < queries.size(); i++) {
+            queries.get(i).removeEventListener(listeners.get(i));
+        }
+        queries.clear();
+        listeners.clear();
+    }
+}
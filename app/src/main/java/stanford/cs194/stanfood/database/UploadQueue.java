@@ -0,0 +1,682 @@
+package stanford.cs194.stanfood.database;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.android.gms.tasks.Continuation;
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
+import com.google.firebase.storage.OnProgressListener;
+import com.google.firebase.storage.StorageException;
+import com.google.firebase.storage.StorageMetadata;
+import com.google.firebase.storage.StorageReference;
+import com.google.firebase.storage.UploadTask;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import stanford.cs194.stanfood.App;
+import stanford.cs194.stanfood.helpers.ImageProcessor;
+
+/**
+ * Uploads food photos in the background, so creating an event never waits for its photo.
+ * A queued photo is recompressed into the app's files dir and recorded in
+ * SharedPreferences, so pending uploads survive the app being killed. Uploads go through
+ * Storage upload sessions, and an interrupted upload resumes its session instead of
+ * starting over. Failed attempts are retried with exponential backoff.
+ * Each photo is stored in three sizes, the thumbnail first, so lists and notifications
+ * can show a preview of a few KB instead of the full photo.
+ * Photos are indexed in image_hashes by the SHA-256 of their stored full size, and a photo
+ * that was stored before, like a flyer picked again from the gallery for a new event,
+ * reuses the stored copy instead of being uploaded again. The index is only written by the
+ * indexImageHashes cloud function, once it has hashed the stored photo itself.
+ * A photo can be queued as soon as it is taken, before its event exists. Its upload then
+ * runs while the event is being filled in and written, and once the event is created and
+ * the photo released, the image paths of its food item are set to the download urls.
+ * Uploads run one at a time. All methods must be called from the main thread.
+ */
+public class UploadQueue {
+    private static final long BASE_DELAY_MILLIS = 2000;
+    private static final long MAX_DELAY_MILLIS = 10 * 60 * 1000;
+    private static final int MAX_ATTEMPTS = 15;
+    // photos whose event was never created are dropped after a day
+    private static final long UNRELEASED_TTL_MILLIS = 24 * 60 * 60 * 1000;
+    // sizes in upload order, with their longest side in pixels and compression quality
+    private static final String THUMBNAIL = "thumbnail";
+    private static final String MEDIUM = "medium";
+    private static final String FULL = "full";
+    private static final String[] VARIANT_NAMES = {THUMBNAIL, MEDIUM, FULL};
+    private static final int[] VARIANT_SIZES = {160, 640, ImageProcessor.DEFAULT_MAX_DIMENSION};
+    private static final int[] VARIANT_QUALITIES = {70, ImageProcessor.DEFAULT_QUALITY,
+            ImageProcessor.DEFAULT_QUALITY};
+    private static UploadQueue instance;
+
+    private final Database db;
+    private final Storage store;
+    private final SharedPreferences prefs;
+    private final File directory;
+    private final ExecutorService executor;
+    private final Handler mainHandler;
+    private final Random random;
+    // photos still being copied, and whether they were released meanwhile
+    private final HashMap<String, Boolean> copying;
+    private PendingUpload current;
+    private UploadTask currentTask;
+
+    private final Runnable processNextRunnable = new Runnable() {
+        @Override
+        public void run() {
+            processNext();
+        }
+    };
+
+    public interface OnPhotoCopiedListener {
+        /**
+         * @param preview - the photo at its medium size, or null if it couldn't be decoded
+         */
+        void onPhotoCopied(@Nullable Bitmap preview);
+    }
+
+    public static UploadQueue getInstance(Database db) {
+        if (instance == null) {
+            instance = new UploadQueue(db);
+        }
+        return instance;
+    }
+
+    private UploadQueue(Database db) {
+        Context context = App.getContext();
+        this.db = db;
+        this.store = new Storage();
+        this.prefs = context.getSharedPreferences("upload_queue", Context.MODE_PRIVATE);
+        this.directory = new File(context.getFilesDir(), "uploads");
+        this.executor = Executors.newSingleThreadExecutor();
+        this.mainHandler = new Handler(Looper.getMainLooper());
+        this.random = new Random();
+        this.copying = new HashMap<>();
+    }
+
+    /**
+     * Queues the photo at photoUri to become the image of food item foodId and starts
+     * uploading it. The queue keeps its own recompressed copies, or a copy of the original
+     * file if it can't be decoded. The food item isn't touched until the photo is released.
+     * @param deleteOriginal - whether to delete the original once it is copied, e.g. the
+     *                       camera's file, but not a photo picked from the gallery
+     * @param listener - gets a preview decoded along with the copies, so callers never
+     *                 decode the photo on the main thread; not called if cancelled meanwhile
+     */
+    public void enqueue(final Uri photoUri, final String foodId, final boolean deleteOriginal,
+                        @Nullable final OnPhotoCopiedListener listener) {
+        final ContentResolver resolver = App.getContext().getContentResolver();
+        copying.put(foodId, false);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                PendingUpload copy = copyPhoto(resolver, photoUri, foodId);
+                if (copy == null) {
+                    copy = copyRawPhoto(resolver, photoUri, foodId);
+                }
+                // kept if it couldn't be copied at all, so the photo isn't lost
+                if (copy != null && deleteOriginal) {
+                    resolver.delete(photoUri, null, null);
+                }
+                final PendingUpload upload = copy;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Boolean released = copying.remove(foodId);
+                        Bitmap preview = upload != null ? upload.preview : null;
+                        if (upload != null) upload.preview = null;
+                        if (released == null) {
+                            // cancelled while it was being copied
+                            if (preview != null) preview.recycle();
+                            if (upload != null) deleteFiles(upload);
+                            return;
+                        }
+                        if (upload != null) {
+                            upload.released = released;
+                            save(upload);
+                            processNext();
+                        }
+                        // after saving, so the listener can still cancel it
+                        if (listener != null) listener.onPhotoCopied(preview);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Lets the photo of foodId be added to its food item, once the event has been created.
+     */
+    public void release(String foodId) {
+        if (copying.containsKey(foodId)) {
+            copying.put(foodId, true);
+            return;
+        }
+        PendingUpload upload = load(foodId);
+        if (upload == null) return;
+        if (current != null && current.foodId.equals(foodId)) {
+            current.released = true;
+        }
+        upload.released = true;
+        upload.nextAttemptAt = 0;
+        save(upload);
+        processNext();
+    }
+
+    /**
+     * Drops the photo of foodId, deleting it from Storage if it was already uploaded.
+     */
+    public void cancel(String foodId) {
+        if (copying.remove(foodId) != null) return;
+        PendingUpload upload = load(foodId);
+        prefs.edit().remove(foodId).apply();
+        if (current != null && current.foodId.equals(foodId)) {
+            // the upload's listeners clean up once the cancelled task completes
+            if (currentTask != null) currentTask.cancel();
+            return;
+        }
+        if (upload != null) discard(upload);
+    }
+
+    /**
+     * Resumes uploads left pending when the app was last closed.
+     */
+    public void resume() {
+        processNext();
+    }
+
+    /**
+     * Decodes the photo once and writes each size of it to its own file, hashing the full
+     * size as it will be stored. The medium size is kept as the upload's preview.
+     * Blocks on decoding and the disk, so it is only called from the executor.
+     */
+    @Nullable
+    private PendingUpload copyPhoto(ContentResolver resolver, Uri photoUri, String foodId) {
+        String storagePath = store.newImagePath();
+        PendingUpload upload = new PendingUpload(foodId, System.currentTimeMillis());
+        Bitmap full = null;
+        try {
+            full = new ImageProcessor().decode(resolver, photoUri);
+            if (!directory.exists() && !directory.mkdirs()) {
+                throw new IOException("Could not create " + directory);
+            }
+            for (int i = 0; i < VARIANT_NAMES.length; i++) {
+                String name = VARIANT_NAMES[i];
+                ImageProcessor processor = new ImageProcessor(VARIANT_SIZES[i],
+                        Bitmap.CompressFormat.JPEG, VARIANT_QUALITIES[i]);
+                // the full size keeps the path photos were stored under before
+                Variant variant = new Variant(name, new File(directory, foodId + "_" + name).getPath(),
+                        name.equals(FULL) ? storagePath : storagePath + "_" + name,
+                        processor.getContentType());
+                upload.variants.add(variant);
+
+                Bitmap scaled = ImageProcessor.scale(full, VARIANT_SIZES[i]);
+                byte[] image = processor.encode(scaled);
+                if (name.equals(FULL)) upload.imageHash = hash(image);
+                if (name.equals(MEDIUM)) {
+                    upload.preview = scaled;
+                } else if (scaled != full) {
+                    scaled.recycle();
+                }
+                FileOutputStream out = new FileOutputStream(variant.filePath);
+                try {
+                    out.write(image);
+                } finally {
+                    out.close();
+                }
+            }
+        } catch (IOException e) {
+            Log.d("ERROR", e.toString());
+            deleteFiles(upload);
+            if (upload.preview != null && upload.preview != full) upload.preview.recycle();
+            upload.preview = null;
+            return null;
+        } finally {
+            if (full != null && full != upload.preview) full.recycle();
+        }
+        return upload;
+    }
+
+    /**
+     * Copies the photo as it is, to be uploaded as its full size only, for photos that
+     * can't be decoded here. Readers fall back to the full size when a smaller one is missing.
+     * Blocks on the disk, so it is only called from the executor.
+     */
+    @Nullable
+    private PendingUpload copyRawPhoto(ContentResolver resolver, Uri photoUri, String foodId) {
+        PendingUpload upload = new PendingUpload(foodId, System.currentTimeMillis());
+        String contentType = resolver.getType(photoUri);
+        Variant variant = new Variant(FULL, new File(directory, foodId + "_" + FULL).getPath(),
+                store.newImagePath(), contentType != null ? contentType : "image/jpeg");
+        upload.variants.add(variant);
+        try {
+            if (!directory.exists() && !directory.mkdirs()) {
+                throw new IOException("Could not create " + directory);
+            }
+            InputStream in = resolver.openInputStream(photoUri);
+            if (in == null) {
+                throw new IOException("Could not open image: " + photoUri);
+            }
+            try {
+                FileOutputStream out = new FileOutputStream(variant.filePath);
+                try {
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, read);
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.d("ERROR", e.toString());
+            deleteFiles(upload);
+            return null;
+        }
+        return upload;
+    }
+
+    /**
+     * Returns the SHA-256 of data, in hex, as indexImageHashes computes it.
+     */
+    private static String hash(byte[] data) throws IOException {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(data)) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Starts the next upload that is due, or schedules a wake-up for the earliest retry.
+     */
+    private void processNext() {
+        mainHandler.removeCallbacks(processNextRunnable);
+        if (current != null) return;
+        long now = System.currentTimeMillis();
+        long nextAttemptAt = Long.MAX_VALUE;
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            PendingUpload upload = PendingUpload.fromJson(entry.getValue());
+            if (upload == null) {
+                prefs.edit().remove(entry.getKey()).apply();
+            } else if (!upload.released && now - upload.createdAt > UNRELEASED_TTL_MILLIS) {
+                prefs.edit().remove(entry.getKey()).apply();
+                discard(upload);
+            } else if (!upload.released && upload.getNextVariant() == null) {
+                // uploaded, waiting for its event
+            } else if (upload.nextAttemptAt <= now) {
+                current = upload;
+                uploadNextVariant(upload);
+                return;
+            } else {
+                nextAttemptAt = Math.min(nextAttemptAt, upload.nextAttemptAt);
+            }
+        }
+        if (nextAttemptAt != Long.MAX_VALUE) {
+            mainHandler.postDelayed(processNextRunnable, nextAttemptAt - now);
+        }
+    }
+
+    /**
+     * Uploads the sizes of the photo that aren't stored yet, one after the other, then sets
+     * the food item's image paths if the photo has been released.
+     */
+    private void uploadNextVariant(final PendingUpload upload) {
+        if (upload.imageHash != null && !upload.hashChecked) {
+            findStoredCopy(upload);
+            return;
+        }
+        final Variant variant = upload.getNextVariant();
+        if (variant == null) {
+            if (upload.released) {
+                setImagePaths(upload);
+            } else {
+                next();
+            }
+            return;
+        }
+        File file = new File(variant.filePath);
+        if (!file.exists()) {
+            Log.d("ERROR", "Upload file missing: " + variant.filePath);
+            discard(upload);
+            finish(upload);
+            return;
+        }
+
+        final StorageReference ref = store.getReference(variant.storagePath);
+        StorageMetadata metadata = new StorageMetadata.Builder()
+                .setContentType(variant.contentType)
+                .build();
+        UploadTask uploadTask = variant.sessionUri == null
+                ? ref.putFile(Uri.fromFile(file), metadata)
+                : ref.putFile(Uri.fromFile(file), metadata, Uri.parse(variant.sessionUri));
+        currentTask = uploadTask;
+        uploadTask.addOnProgressListener(new OnProgressListener<UploadTask.TaskSnapshot>() {
+            @Override
+            public void onProgress(UploadTask.TaskSnapshot taskSnapshot) {
+                // saved as soon as the session exists, so a killed app can resume it
+                Uri sessionUri = taskSnapshot.getUploadSessionUri();
+                if (variant.sessionUri == null && sessionUri != null && prefs.contains(upload.foodId)) {
+                    variant.sessionUri = sessionUri.toString();
+                    save(upload);
+                }
+            }
+        });
+        uploadTask.continueWithTask(new Continuation<UploadTask.TaskSnapshot, Task<Uri>>() {
+            @Override
+            public Task<Uri> then(@NonNull Task<UploadTask.TaskSnapshot> task) throws Exception {
+                if (!task.isSuccessful()) {
+                    throw task.getException();
+                }
+                return ref.getDownloadUrl();
+            }
+        }).addOnCompleteListener(new OnCompleteListener<Uri>() {
+            @Override
+            public void onComplete(@NonNull Task<Uri> task) {
+                currentTask = null;
+                if (isCancelled(upload)) {
+                    return;
+                }
+                if (!task.isSuccessful()) {
+                    retryLater(upload, variant, task.getException());
+                    return;
+                }
+                variant.downloadUrl = task.getResult().toString();
+                variant.sessionUri = null;
+                save(upload);
+                new File(variant.filePath).delete();
+                uploadNextVariant(upload);
+            }
+        });
+    }
+
+    /**
+     * Checks image_hashes for a stored copy of the photo before any of it is uploaded.
+     * If all sizes of it are stored, they are used and nothing is uploaded.
+     */
+    private void findStoredCopy(final PendingUpload upload) {
+        db.findImageByHash(upload.imageHash, new Database.OnImageFoundListener() {
+            @Override
+            public void onImageFound(@Nullable Map<String, String> image) {
+                if (isCancelled(upload)) {
+                    return;
+                }
+                upload.hashChecked = true;
+                if (image != null && image.keySet().containsAll(Arrays.asList(VARIANT_NAMES))) {
+                    for (Variant variant : upload.variants) {
+                        variant.downloadUrl = image.get(variant.name);
+                    }
+                    upload.reused = true;
+                    deleteFiles(upload);
+                }
+                save(upload);
+                uploadNextVariant(upload);
+            }
+        });
+    }
+
+    private void setImagePaths(final PendingUpload upload) {
+        db.setFoodImagePaths(upload.foodId, upload.getDownloadUrl(THUMBNAIL),
+                upload.getDownloadUrl(MEDIUM), upload.getDownloadUrl(FULL),
+                upload.reused ? null : upload.getVariant(FULL).storagePath, upload.imageHash,
+                new Database.OnImagePathSetListener() {
+                    @Override
+                    public void onImagePathSet(boolean stored) {
+                        if (isCancelled(upload)) {
+                            return;
+                        }
+                        if (stored) {
+                            finish(upload);
+                        } else {
+                            // the event may not be written yet
+                            retryLater(upload, null, null);
+                        }
+                    }
+                });
+    }
+
+    private void retryLater(PendingUpload upload, @Nullable Variant variant, @Nullable Exception e) {
+        if (e != null) {
+            Log.d("ERROR", e.toString());
+        }
+        upload.attempts++;
+        if (upload.attempts >= MAX_ATTEMPTS) {
+            Log.d("ERROR", "Giving up on the photo of food " + upload.foodId);
+            discard(upload);
+            finish(upload);
+            return;
+        }
+        // network failures resume the session; any other error starts a new one
+        if (variant != null && e instanceof StorageException
+                && ((StorageException) e).getErrorCode() != StorageException.ERROR_RETRY_LIMIT_EXCEEDED) {
+            variant.sessionUri = null;
+        }
+        long delay = Math.min(MAX_DELAY_MILLIS, BASE_DELAY_MILLIS << Math.min(upload.attempts - 1, 20));
+        // jittered, so uploads that failed together don't all retry together
+        delay = delay / 2 + (long) (random.nextDouble() * (delay / 2));
+        upload.nextAttemptAt = System.currentTimeMillis() + delay;
+        save(upload);
+        next();
+    }
+
+    private void finish(PendingUpload upload) {
+        prefs.edit().remove(upload.foodId).apply();
+        deleteFiles(upload);
+        next();
+    }
+
+    /**
+     * Checks, once a step of the current upload completes, whether it was cancelled
+     * meanwhile. If so, its files and uploaded photos are deleted and the next upload started.
+     */
+    private boolean isCancelled(PendingUpload upload) {
+        if (prefs.contains(upload.foodId)) return false;
+        discard(upload);
+        next();
+        return true;
+    }
+
+    private void discard(PendingUpload upload) {
+        deleteFiles(upload);
+        // a reused photo belongs to other food items too
+        if (upload.reused) return;
+        // an upload may have completed even if its url was never saved
+        for (Variant variant : upload.variants) {
+            store.getReference(variant.storagePath).delete();
+        }
+    }
+
+    private void deleteFiles(PendingUpload upload) {
+        for (Variant variant : upload.variants) {
+            new File(variant.filePath).delete();
+        }
+    }
+
+    private void next() {
+        current = null;
+        processNext();
+    }
+
+    @Nullable
+    private PendingUpload load(String foodId) {
+        return PendingUpload.fromJson(prefs.getString(foodId, null));
+    }
+
+    private void save(PendingUpload upload) {
+        String json = upload.toJson();
+        if (json != null) {
+            prefs.edit().putString(upload.foodId, json).apply();
+        }
+    }
+
+    /**
+     * One size of a queued photo.
+     */
+    private static class Variant {
+        final String name;
+        final String filePath;
+        final String storagePath;
+        final String contentType;
+        String sessionUri;
+        String downloadUrl;
+
+        Variant(String name, String filePath, String storagePath, String contentType) {
+            this.name = name;
+            this.filePath = filePath;
+            this.storagePath = storagePath;
+            this.contentType = contentType;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("name", name);
+            json.put("filePath", filePath);
+            json.put("storagePath", storagePath);
+            json.put("contentType", contentType);
+            json.put("sessionUri", sessionUri);
+            json.put("downloadUrl", downloadUrl);
+            return json;
+        }
+
+        static Variant fromJson(JSONObject json) throws JSONException {
+            Variant variant = new Variant(json.getString("name"), json.getString("filePath"),
+                    json.getString("storagePath"), json.getString("contentType"));
+            variant.sessionUri = json.optString("sessionUri", null);
+            variant.downloadUrl = json.optString("downloadUrl", null);
+            return variant;
+        }
+    }
+
+    /**
+     * A queued photo, stored as JSON under its foodId.
+     */
+    private static class PendingUpload {
+        final String foodId;
+        final long createdAt;
+        final ArrayList<Variant> variants;
+        String imageHash;
+        boolean hashChecked;
+        boolean reused;
+        boolean released;
+        int attempts;
+        long nextAttemptAt;
+        // handed to enqueue's listener once copied, never saved
+        Bitmap preview;
+
+        PendingUpload(String foodId, long createdAt) {
+            this.foodId = foodId;
+            this.createdAt = createdAt;
+            this.variants = new ArrayList<>();
+        }
+
+        /**
+         * Returns the first size that isn't uploaded yet, or null once all of them are.
+         */
+        @Nullable
+        Variant getNextVariant() {
+            for (Variant variant : variants) {
+                if (variant.downloadUrl == null) return variant;
+            }
+            return null;
+        }
+
+        Variant getVariant(String name) {
+            for (Variant variant : variants) {
+                if (variant.name.equals(name)) return variant;
+            }
+            throw new IllegalArgumentException("No variant " + name);
+        }
+
+        /**
+         * Returns the download url of a size, or null if the photo isn't stored in it.
+         */
+        @Nullable
+        String getDownloadUrl(String name) {
+            for (Variant variant : variants) {
+                if (variant.name.equals(name)) return variant.downloadUrl;
+            }
+            return null;
+        }
+
+        @Nullable
+        String toJson() {
+            try {
+                JSONObject json = new JSONObject();
+                json.put("foodId", foodId);
+                json.put("createdAt", createdAt);
+                json.put("imageHash", imageHash);
+                json.put("hashChecked", hashChecked);
+                json.put("reused", reused);
+                json.put("released", released);
+                json.put("attempts", attempts);
+                json.put("nextAttemptAt", nextAttemptAt);
+                JSONArray variantsJson = new JSONArray();
+                for (Variant variant : variants) {
+                    variantsJson.put(variant.toJson());
+                }
+                json.put("variants", variantsJson);
+                return json.toString();
+            } catch (JSONException e) {
+                Log.d("ERROR", e.toString());
+                return null;
+            }
+        }
+
+        @Nullable
+        static PendingUpload fromJson(Object value) {
+            if (!(value instanceof String)) return null;
+            try {
+                JSONObject json = new JSONObject((String) value);
+                PendingUpload upload = new PendingUpload(json.getString("foodId"),
+                        json.optLong("createdAt"));
+                upload.imageHash = json.optString("imageHash", null);
+                upload.hashChecked = json.optBoolean("hashChecked");
+                upload.reused = json.optBoolean("reused");
+                upload.released = json.optBoolean("released", true);
+                upload.attempts = json.optInt("attempts");
+                upload.nextAttemptAt = json.optLong("nextAttemptAt");
+                JSONArray variantsJson = json.getJSONArray("variants");
+                for (int i = 0; i < variantsJson.length(); i++) {
+                    upload.variants.add(Variant.fromJson(variantsJson.getJSONObject(i)));
+                }
+                return upload;
+            } catch (JSONException e) {
+                Log.d("ERROR", e.toString());
+                return null;
+            }
+        }
+    }
+}
@@ -19,6 +19,7 @@ import java.util.Calendar;
 import java.util.Date;
 
 import stanford.cs194.stanfood.R;
+import stanford.cs194.stanfood.helpers.TimeDateUtils;
 
 public class MapClockFragment extends DialogFragment {
     private OnMapClockSuccessListener callback;
@@ -74,8 +75,7 @@ public class MapClockFragment extends DialogFragment {
             }
         });
 
-        String datePattern = "EEE, MMM d hh:mm aaa, ''yy";
-        SimpleDateFormat sdf = new SimpleDateFormat(datePattern);
+        SimpleDateFormat sdf = TimeDateUtils.getFormat(TimeDateUtils.MAP_CLOCK_PATTERN);
         startDateTime.setText(sdf.format(startDate));
         endDateTime.setText(sdf.format(endDate));
 
@@ -111,8 +111,7 @@ public class MapClockFragment extends DialogFragment {
     }
 
     private void doneButtonListener(View v, String startDateTime, String endDateTime){
-        String datePattern = "EEE, MMM d hh:mm aaa, ''yy";
-        SimpleDateFormat sdf = new SimpleDateFormat(datePattern);
+        SimpleDateFormat sdf = TimeDateUtils.getFormat(TimeDateUtils.MAP_CLOCK_PATTERN);
         try {
             Date startDate = sdf.parse(startDateTime);
             Date endDate = sdf.parse(endDateTime);
@@ -134,8 +133,7 @@ public class MapClockFragment extends DialogFragment {
     }
 
     private void setText(TextView textView, Calendar cal){
-        String datePattern = "EEE, MMM d hh:mm aaa, ''yy";
-        SimpleDateFormat sdf = new SimpleDateFormat(datePattern);
+        SimpleDateFormat sdf = TimeDateUtils.getFormat(TimeDateUtils.MAP_CLOCK_PATTERN);
         textView.setText(sdf.format(cal.getTime()));
     }
 }
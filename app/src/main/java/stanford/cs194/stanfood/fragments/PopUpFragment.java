@@ -12,9 +12,11 @@ import android.view.LayoutInflater;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.ImageView;
 import android.widget.TextView;
 
 import stanford.cs194.stanfood.R;
+import stanford.cs194.stanfood.helpers.ImageLoader;
 
 public class PopUpFragment extends DialogFragment {
 
@@ -23,8 +25,9 @@ public class PopUpFragment extends DialogFragment {
     private String time;
     private String description;
     private String foodDescription;
+    private String foodImagePath;
 
-    public static PopUpFragment newInstance(String name, String location, String time, String description, String foodDescription) {
+    public static PopUpFragment newInstance(String name, String location, String time, String description, String foodDescription, String foodImagePath) {
         PopUpFragment p = new PopUpFragment();
         // initiate popup variables.
         p.name = name;
@@ -32,6 +35,7 @@ public class PopUpFragment extends DialogFragment {
         p.time = time;
         p.description = description;
         p.foodDescription = foodDescription;
+        p.foodImagePath = foodImagePath;
 
         return p;
     }
@@ -50,6 +54,7 @@ public class PopUpFragment extends DialogFragment {
         TextView infoEventDescription = popupView.findViewById(R.id.infoEventDescription);
         TextView infoEventName = popupView.findViewById(R.id.infoEventName);
         TextView infoFoodDescription = popupView.findViewById(R.id.infoFoodDescription);
+        ImageView infoFoodImage = popupView.findViewById(R.id.infoFoodImage);
 
         String locationText = infoLocationName.getText().toString() + location;
         infoLocationName.setText(locationText);
@@ -64,6 +69,9 @@ public class PopUpFragment extends DialogFragment {
         }
         infoEventName.setText(name);
         infoFoodDescription.setText(foodDescription);
+        // the popup is at most as wide as the screen
+        int imageSize = getResources().getDisplayMetrics().widthPixels;
+        ImageLoader.getInstance().load(foodImagePath, infoFoodImage, imageSize);
         getDialog().getWindow().setBackgroundDrawable(new ColorDrawable(Color.TRANSPARENT));
 
         popupView.setFocusable(true);
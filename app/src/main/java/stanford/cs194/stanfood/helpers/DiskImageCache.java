@@ -0,0 +1,139 @@
+package stanford.cs194.stanfood.helpers;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Files downloaded by url, kept in one directory and bounded by total size.
+ * Each hit refreshes the file's modification time, and once the directory grows past
+ * maxBytes the least recently used files are deleted.
+ * Reads and writes block, so it is only used from background threads.
+ */
+public class DiskImageCache {
+    private final File directory;
+    private final long maxBytes;
+    private long size = -1;
+
+    public DiskImageCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the cached file for url, or null if it isn't cached.
+     */
+    public synchronized File get(String url) {
+        File file = getFile(url);
+        if (!file.exists()) return null;
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * Copies the stream into the cache as the file for url and returns it.
+     * The file only appears once it is complete, so a failed copy leaves nothing behind.
+     */
+    public File put(String url, InputStream in) throws IOException {
+        File file = getFile(url);
+        File tmp = new File(directory, file.getName() + ".tmp" + Thread.currentThread().getId());
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            out.close();
+            tmp.delete();
+            throw e;
+        }
+        out.close();
+
+        synchronized (this) {
+            initSize();
+            if (file.exists()) {
+                size -= file.length();
+                file.delete();
+            }
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("Could not move " + tmp + " to " + file);
+            }
+            size += file.length();
+            trim();
+        }
+        return file;
+    }
+
+    public synchronized void remove(String url) {
+        File file = getFile(url);
+        if (!file.exists()) return;
+        initSize();
+        size -= file.length();
+        file.delete();
+    }
+
+    private void initSize() {
+        if (size >= 0) return;
+        size = 0;
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            size += file.length();
+        }
+    }
+
+    /**
+     * Deletes the least recently used files until the cache fits in maxBytes.
+     */
+    private void trim() {
+        if (size <= maxBytes) return;
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long x = a.lastModified();
+                long y = b.lastModified();
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (size <= maxBytes) break;
+            long length = file.length();
+            if (file.delete()) size -= length;
+        }
+    }
+
+    private File getFile(String url) {
+        return new File(directory, hash(url));
+    }
+
+    private static String hash(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            Log.d("ERROR", e.toString());
+            return Integer.toHexString(url.hashCode());
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package stanford.cs194.stanfood.helpers;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Base32 geohash encoding used to index pins by location, so the database can be queried
+ * for a small set of cells around a point instead of downloading every pin.
+ */
+public class GeoHash {
+    public static final int DEFAULT_PRECISION = 10;
+    private static final String BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+    private static final int MAX_PRECISION = 12;
+    private static final double METERS_PER_DEGREE = 111320;
+    private static final double EARTH_RADIUS_METERS = 6371000;
+
+    /**
+     * Encodes a coordinate into a geohash with the default precision (~1m cells).
+     */
+    public static String encode(double latitude, double longitude) {
+        return encode(latitude, longitude, DEFAULT_PRECISION);
+    }
+
+    /**
+     * Encodes a coordinate into a geohash with the given number of characters.
+     */
+    public static String encode(double latitude, double longitude, int precision) {
+        double minLat = -90, maxLat = 90;
+        double minLng = -180, maxLng = 180;
+        StringBuilder hash = new StringBuilder(precision);
+        boolean evenBit = true;
+        int bit = 0;
+        int ch = 0;
+        while (hash.length() < precision) {
+            if (evenBit) {
+                double mid = (minLng + maxLng) / 2;
+                if (longitude >= mid) {
+                    ch = (ch << 1) | 1;
+                    minLng = mid;
+                } else {
+                    ch = ch << 1;
+                    maxLng = mid;
+                }
+            } else {
+                double mid = (minLat + maxLat) / 2;
+                if (latitude >= mid) {
+                    ch = (ch << 1) | 1;
+                    minLat = mid;
+                } else {
+                    ch = ch << 1;
+                    maxLat = mid;
+                }
+            }
+            evenBit = !evenBit;
+            if (++bit == 5) {
+                hash.append(BASE32.charAt(ch));
+                bit = 0;
+                ch = 0;
+            }
+        }
+        return hash.toString();
+    }
+
+    /**
+     * Returns the geohash prefixes whose cells cover a circle of the given radius around
+     * a coordinate: the cell containing the point and its eight neighbours, at the finest
+     * precision where a single cell is still at least as large as the radius. A circle that
+     * reaches a pole spans every longitude, so it gets every column of its rows instead.
+     */
+    public static Set<String> coveringCells(double latitude, double longitude, double radiusMeters) {
+        int precision = precisionForRadius(latitude, radiusMeters);
+        double latSpan = latitudeSpan(precision);
+        double lngSpan = longitudeSpan(precision);
+        boolean reachesPole = polewardLatitude(latitude, radiusMeters) >= 90;
+        int columns = (int) Math.round(360 / lngSpan);
+
+        Set<String> cells = new LinkedHashSet<>();
+        for (int dy = -1; dy <= 1; dy++) {
+            double lat = Math.max(-90, Math.min(90, latitude + dy * latSpan));
+            if (reachesPole) {
+                for (int column = 0; column < columns; column++) {
+                    cells.add(encode(lat, -180 + column * lngSpan, precision));
+                }
+                continue;
+            }
+            for (int dx = -1; dx <= 1; dx++) {
+                double lng = wrapLongitude(longitude + dx * lngSpan);
+                cells.add(encode(lat, lng, precision));
+            }
+        }
+        return cells;
+    }
+
+    /**
+     * Great-circle distance in meters between two coordinates (haversine formula).
+     */
+    public static double distanceMeters(double lat1, double lng1, double lat2, double lng2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLng = Math.toRadians(lng2 - lng1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
+                * Math.sin(dLng / 2) * Math.sin(dLng / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    private static int precisionForRadius(double latitude, double radiusMeters) {
+        // cells are narrowest at the circle's poleward edge
+        double edgeLatitude = polewardLatitude(latitude, radiusMeters);
+        double cosLat = Math.max(0, Math.cos(Math.toRadians(edgeLatitude)));
+        int precision = 1;
+        while (precision < MAX_PRECISION) {
+            int next = precision + 1;
+            double heightMeters = latitudeSpan(next) * METERS_PER_DEGREE;
+            double widthMeters = longitudeSpan(next) * METERS_PER_DEGREE * cosLat;
+            if (heightMeters < radiusMeters || widthMeters < radiusMeters) {
+                break;
+            }
+            precision = next;
+        }
+        return precision;
+    }
+
+    /**
+     * Returns the absolute latitude of the circle's edge closest to a pole, at most 90.
+     */
+    private static double polewardLatitude(double latitude, double radiusMeters) {
+        return Math.min(90, Math.abs(latitude) + radiusMeters / METERS_PER_DEGREE);
+    }
+
+    private static double latitudeSpan(int precision) {
+        int latBits = (precision * 5) / 2;
+        return 180 / Math.pow(2, latBits);
+    }
+
+    private static double longitudeSpan(int precision) {
+        int lngBits = (precision * 5 + 1) / 2;
+        return 360 / Math.pow(2, lngBits);
+    }
+
+    /**
+     * Wraps a longitude into [-180, 180). A center on the antimeridian then gets the
+     * westernmost cell, and the easternmost cell as its western neighbour.
+     */
+    private static double wrapLongitude(double longitude) {
+        if (longitude >= 180) return longitude - 360;
+        if (longitude < -180) return longitude + 360;
+        return longitude;
+    }
+}
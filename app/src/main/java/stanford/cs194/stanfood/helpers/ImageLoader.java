@@ -0,0 +1,270 @@
+package stanford.cs194.stanfood.helpers;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.LruCache;
+import android.view.View;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import stanford.cs194.stanfood.App;
+
+/**
+ * Loads food photos from their download urls, for ImageViews and notifications.
+ * Photos are decoded at the size of the view they are shown in and kept in a memory LRU
+ * sized from the heap, so memory use follows what is on screen rather than the photos'
+ * full resolution. Downloaded files are kept in a size-bounded disk cache, so a photo
+ * is only downloaded again once it has been evicted.
+ * Concurrent loads of the same photo at the same size share one download and decode.
+ * Queued loads run newest first, so rows scrolled onto the screen load before rows that
+ * have already left it, and a load is skipped once every view waiting on it is rebound.
+ * All methods must be called from the main thread.
+ */
+public class ImageLoader {
+    private static final int THREADS = 3;
+    private static final int MAX_QUEUED = 64;
+    private static final long DISK_CACHE_BYTES = 50L * 1024 * 1024;
+    private static final int TIMEOUT_MILLIS = 15000;
+    private static ImageLoader instance;
+
+    private final LruCache<String, Bitmap> memoryCache;
+    private final DiskImageCache diskCache;
+    private final HashMap<String, Request> inFlight;
+    private final ThreadPoolExecutor executor;
+    private final Handler mainHandler;
+
+    public interface OnImageLoadedListener {
+        /**
+         * @param bitmap - the photo, or null if it couldn't be loaded
+         */
+        void onImageLoaded(@Nullable Bitmap bitmap);
+    }
+
+    /**
+     * A download and decode, shared by everyone waiting for the same photo at the same size.
+     */
+    private static class Request {
+        final ArrayList<OnImageLoadedListener> listeners = new ArrayList<>();
+        // read by the executor, so a load nobody waits for any more is skipped
+        volatile boolean cancelled;
+    }
+
+    /**
+     * Shows a loaded photo in a view, set as the view's tag while the view waits for it.
+     */
+    private static class ViewTarget implements OnImageLoadedListener {
+        final String key;
+        final ImageView view;
+
+        ViewTarget(String key, ImageView view) {
+            this.key = key;
+            this.view = view;
+        }
+
+        @Override
+        public void onImageLoaded(@Nullable Bitmap bitmap) {
+            // the view was recycled for another photo while this one loaded
+            if (view.getTag() != this) return;
+            if (bitmap != null) {
+                view.setImageBitmap(bitmap);
+            } else {
+                view.setVisibility(View.GONE);
+            }
+        }
+    }
+
+    public static ImageLoader getInstance() {
+        if (instance == null) {
+            instance = new ImageLoader();
+        }
+        return instance;
+    }
+
+    private ImageLoader() {
+        // an eighth of the heap, counted in KB
+        int cacheKb = (int) (Runtime.getRuntime().maxMemory() / 1024 / 8);
+        memoryCache = new LruCache<String, Bitmap>(cacheKb) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getRowBytes() * bitmap.getHeight() / 1024;
+            }
+        };
+        diskCache = new DiskImageCache(new File(App.getContext().getCacheDir(), "images"),
+                DISK_CACHE_BYTES);
+        inFlight = new HashMap<>();
+        // workers take from the head, so adding at the head runs the newest load first
+        executor = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingDeque<Runnable>(MAX_QUEUED) {
+                    @Override
+                    public boolean offer(Runnable task) {
+                        return offerFirst(task);
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        mainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Shows the photo at url in view, decoded so its longest side is at most targetSize
+     * pixels. The view is hidden if there is no photo or it can't be loaded.
+     * If the view is rebound to another photo before this one loads, this one is dropped,
+     * and no longer loaded at all if no other view is waiting for it.
+     */
+    public void load(final String url, final ImageView view, int targetSize) {
+        if (view.getTag() instanceof ViewTarget) {
+            cancel((ViewTarget) view.getTag());
+        }
+        if (url == null || url.equals("")) {
+            view.setTag(null);
+            view.setImageDrawable(null);
+            view.setVisibility(View.GONE);
+            return;
+        }
+        String key = getKey(url, targetSize);
+        view.setVisibility(View.VISIBLE);
+        Bitmap cached = memoryCache.get(key);
+        if (cached != null) {
+            view.setTag(null);
+            view.setImageBitmap(cached);
+            return;
+        }
+        ViewTarget target = new ViewTarget(key, view);
+        view.setTag(target);
+        view.setImageDrawable(null);
+        load(url, targetSize, target);
+    }
+
+    /**
+     * Stops a view waiting for its photo, and skips the load if nobody else waits for it.
+     */
+    private void cancel(ViewTarget target) {
+        Request request = inFlight.get(target.key);
+        if (request == null || !request.listeners.remove(target)) return;
+        if (request.listeners.isEmpty()) {
+            request.cancelled = true;
+            inFlight.remove(target.key);
+        }
+    }
+
+    /**
+     * Loads the photo at url, decoded so its longest side is at most targetSize pixels.
+     * The listener is called immediately if the photo is in memory.
+     */
+    public void load(final String url, final int targetSize, OnImageLoadedListener listener) {
+        final String key = getKey(url, targetSize);
+        Bitmap cached = memoryCache.get(key);
+        if (cached != null) {
+            listener.onImageLoaded(cached);
+            return;
+        }
+        Request waiting = inFlight.get(key);
+        if (waiting != null) {
+            waiting.listeners.add(listener);
+            return;
+        }
+        final Request request = new Request();
+        request.listeners.add(listener);
+        inFlight.put(key, request);
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (request.cancelled) return;
+                    final Bitmap bitmap = getBitmap(url, targetSize);
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (bitmap != null) {
+                                memoryCache.put(key, bitmap);
+                            }
+                            deliver(key, request, bitmap);
+                        }
+                    });
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.d("ERROR", e.toString());
+            inFlight.remove(key);
+            // the photo may well exist, so views stay visible and load it when rebound
+            for (OnImageLoadedListener waitingListener : request.listeners) {
+                if (waitingListener instanceof ViewTarget) {
+                    ((ViewTarget) waitingListener).view.setTag(null);
+                } else {
+                    waitingListener.onImageLoaded(null);
+                }
+            }
+        }
+    }
+
+    private void deliver(String key, Request request, Bitmap bitmap) {
+        // a cancelled request may have been replaced by a new one for the same photo
+        if (inFlight.get(key) != request) return;
+        inFlight.remove(key);
+        for (OnImageLoadedListener listener : request.listeners) {
+            listener.onImageLoaded(bitmap);
+        }
+    }
+
+    private String getKey(String url, int targetSize) {
+        return targetSize + "@" + url;
+    }
+
+    /**
+     * Blocks on the disk and network, so it is only called from the executor.
+     */
+    private Bitmap getBitmap(String url, int targetSize) {
+        try {
+            File file = diskCache.get(url);
+            if (file == null) {
+                file = download(url);
+            }
+            ImageProcessor processor = new ImageProcessor(targetSize, Bitmap.CompressFormat.JPEG,
+                    ImageProcessor.DEFAULT_QUALITY);
+            try {
+                return processor.decode(App.getContext().getContentResolver(), Uri.fromFile(file));
+            } catch (IOException e) {
+                // a corrupt or empty download would otherwise be served from disk forever
+                diskCache.remove(url);
+                throw e;
+            }
+        } catch (IOException e) {
+            Log.d("ERROR", e.toString());
+            return null;
+        }
+    }
+
+    private File download(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        try {
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Download failed with " + connection.getResponseCode() + ": " + url);
+            }
+            InputStream in = connection.getInputStream();
+            try {
+                return diskCache.put(url, in);
+            } finally {
+                in.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package stanford.cs194.stanfood.helpers;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.net.Uri;
+import android.support.media.ExifInterface;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Shrinks camera photos before they are uploaded or displayed.
+ * The photo is decoded with a power-of-two inSampleSize, so at most about four times the
+ * output size is held in memory, then scaled so its longest side is maxDimension, rotated
+ * according to its EXIF orientation and recompressed.
+ * Decoding and compressing block, so decode() and encode() must not be called on the
+ * UI thread.
+ */
+public class ImageProcessor {
+    public static final int DEFAULT_MAX_DIMENSION = 1280;
+    public static final int DEFAULT_QUALITY = 80;
+
+    private final int maxDimension;
+    private final Bitmap.CompressFormat format;
+    private final int quality;
+
+    public ImageProcessor() {
+        this(DEFAULT_MAX_DIMENSION, Bitmap.CompressFormat.JPEG, DEFAULT_QUALITY);
+    }
+
+    /**
+     * @param maxDimension - longest side of the output in pixels
+     * @param format - JPEG, or WEBP for smaller files on devices that encode it well
+     * @param quality - compression quality from 0 to 100
+     */
+    public ImageProcessor(int maxDimension, Bitmap.CompressFormat format, int quality) {
+        this.maxDimension = maxDimension;
+        this.format = format;
+        this.quality = quality;
+    }
+
+    public String getContentType() {
+        return format == Bitmap.CompressFormat.JPEG ? "image/jpeg" : "image/webp";
+    }
+
+    /**
+     * Compresses a decoded image in this processor's format and quality.
+     */
+    public byte[] encode(Bitmap bitmap) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(format, quality, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns the bitmap scaled so its longest side is at most maxDimension, or the bitmap
+     * itself if it is already small enough.
+     */
+    public static Bitmap scale(Bitmap bitmap, int maxDimension) {
+        int longest = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (longest <= maxDimension) return bitmap;
+        float scale = (float) maxDimension / longest;
+        return Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+    }
+
+    /**
+     * Decodes the image at uri with its longest side at most maxDimension, upright.
+     * @throws IOException if the image can't be read or decoded
+     */
+    public Bitmap decode(ContentResolver resolver, Uri uri) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decodeStream(resolver, uri, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Not a decodable image: " + uri);
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = getSampleSize(options.outWidth, options.outHeight);
+        Bitmap sampled = decodeStream(resolver, uri, options);
+        if (sampled == null) {
+            throw new IOException("Could not decode image: " + uri);
+        }
+
+        Matrix matrix = new Matrix();
+        int longest = Math.max(sampled.getWidth(), sampled.getHeight());
+        if (longest > maxDimension) {
+            float scale = (float) maxDimension / longest;
+            matrix.postScale(scale, scale);
+        }
+        matrix.postRotate(getRotation(resolver, uri));
+        if (matrix.isIdentity()) {
+            return sampled;
+        }
+        Bitmap result = Bitmap.createBitmap(sampled, 0, 0, sampled.getWidth(), sampled.getHeight(),
+                matrix, true);
+        if (result != sampled) {
+            sampled.recycle();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the largest power of two that keeps the longest side at least maxDimension.
+     */
+    private int getSampleSize(int width, int height) {
+        int longest = Math.max(width, height);
+        int sampleSize = 1;
+        while (longest / (sampleSize * 2) >= maxDimension) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private int getRotation(ContentResolver resolver, Uri uri) throws IOException {
+        InputStream in = resolver.openInputStream(uri);
+        if (in == null) return 0;
+        try {
+            ExifInterface exif = new ExifInterface(in);
+            int orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.ORIENTATION_NORMAL);
+            switch (orientation) {
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    return 90;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    return 180;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    return 270;
+                default:
+                    return 0;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private Bitmap decodeStream(ContentResolver resolver, Uri uri, BitmapFactory.Options options)
+            throws IOException {
+        InputStream in = resolver.openInputStream(uri);
+        if (in == null) {
+            throw new IOException("Could not open image: " + uri);
+        }
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+}
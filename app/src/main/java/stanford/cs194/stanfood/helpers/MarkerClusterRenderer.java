@@ -0,0 +1,248 @@
+package stanford.cs194.stanfood.helpers;
+
+import android.animation.Animator;
+import android.animation.AnimatorListenerAdapter;
+import android.animation.TypeEvaluator;
+import android.animation.ValueAnimator;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.content.ContextCompat;
+import android.util.SparseArray;
+
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.BitmapDescriptor;
+import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.Marker;
+import com.google.android.gms.maps.model.MarkerOptions;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import stanford.cs194.stanfood.R;
+
+/**
+ * Draws pins on the map as clusters.
+ * Clusters are computed on a background thread with PinClusterer, and markers are then
+ * reconciled on the main thread: markers of unchanged clusters are kept, so each render
+ * only adds and removes the markers that differ. A cluster of several pins is drawn as
+ * a single badge with the number of pins; the Cluster is stored as the marker tag.
+ * When a cluster splits, the markers of its parts slide out from where it was drawn, and
+ * when clusters merge, their markers slide into the new cluster before being removed.
+ */
+public class MarkerClusterRenderer {
+    private static final double CLUSTER_CELL_SIZE_DP = 64;
+    private static final int BADGE_SIZE_DP = 40;
+    private static final int[] BADGE_BUCKETS = {10, 20, 50, 100, 200, 500, 1000};
+    private static final long ANIMATION_MILLIS = 300;
+
+    private final Context context;
+    private final GoogleMap map;
+    private final ExecutorService executor;
+    private final Handler mainHandler;
+    private HashMap<String, Marker> markers;
+    private final SparseArray<BitmapDescriptor> badgeIcons;
+    private final HashMap<Marker, ValueAnimator> animations;
+    private int generation;
+
+    public MarkerClusterRenderer(Context context, GoogleMap map) {
+        this.context = context;
+        this.map = map;
+        this.executor = Executors.newSingleThreadExecutor();
+        this.mainHandler = new Handler(Looper.getMainLooper());
+        this.markers = new HashMap<>();
+        this.badgeIcons = new SparseArray<>();
+        this.animations = new HashMap<>();
+    }
+
+    /**
+     * Clusters the items for the zoom level in the background, then updates the markers.
+     * Only the latest render is applied. Must be called from the main thread.
+     */
+    public void render(Collection<PinClusterer.Item> items, final float zoom) {
+        final int requestGeneration = ++generation;
+        final ArrayList<PinClusterer.Item> snapshot = new ArrayList<>(items);
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                final List<PinClusterer.Cluster> clusters =
+                        PinClusterer.cluster(snapshot, zoom, CLUSTER_CELL_SIZE_DP);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (requestGeneration == generation) {
+                            applyClusters(clusters);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Removes all markers and stops the background thread.
+     */
+    public void shutdown() {
+        generation++;
+        executor.shutdownNow();
+        // markers sliding into a merged cluster are only tracked by their animation
+        for (Marker m : new ArrayList<>(animations.keySet())) {
+            animations.remove(m).cancel();
+            m.remove();
+        }
+        for (Marker m : markers.values()) {
+            m.remove();
+        }
+        markers.clear();
+    }
+
+    private void applyClusters(List<PinClusterer.Cluster> clusters) {
+        HashSet<String> keys = new HashSet<>();
+        HashMap<String, LatLng> nextPositions = new HashMap<>();
+        for (PinClusterer.Cluster cluster : clusters) {
+            keys.add(cluster.getKey());
+            LatLng position = new LatLng(cluster.getLatitude(), cluster.getLongitude());
+            for (String pinId : cluster.getPinIds()) {
+                nextPositions.put(pinId, position);
+            }
+        }
+        // where the pins of markers that are going away were drawn
+        HashMap<String, LatLng> previousPositions = new HashMap<>();
+        for (Marker m : markers.values()) {
+            PinClusterer.Cluster previous = (PinClusterer.Cluster) m.getTag();
+            if (keys.contains(previous.getKey())) continue;
+            for (String pinId : previous.getPinIds()) {
+                previousPositions.put(pinId, m.getPosition());
+            }
+        }
+
+        HashMap<String, Marker> next = new HashMap<>();
+        for (PinClusterer.Cluster cluster : clusters) {
+            LatLng position = new LatLng(cluster.getLatitude(), cluster.getLongitude());
+            Marker m = markers.remove(cluster.getKey());
+            if (m == null) {
+                LatLng from = previousPositions.get(cluster.getPinIds().get(0));
+                MarkerOptions options = new MarkerOptions().position(from != null ? from : position);
+                if (cluster.getSize() > 1) {
+                    options.icon(getBadgeIcon(cluster.getSize())).anchor(0.5f, 0.5f);
+                }
+                m = map.addMarker(options);
+                if (from != null && !from.equals(position)) {
+                    animate(m, position, false);
+                }
+            } else {
+                PinClusterer.Cluster previous = (PinClusterer.Cluster) m.getTag();
+                if (!m.getPosition().equals(position)) {
+                    animate(m, position, false);
+                }
+                if (cluster.getSize() > 1 && previous.getSize() != cluster.getSize()) {
+                    m.setIcon(getBadgeIcon(cluster.getSize()));
+                }
+            }
+            m.setTag(cluster);
+            next.put(cluster.getKey(), m);
+        }
+        for (Marker m : markers.values()) {
+            PinClusterer.Cluster previous = (PinClusterer.Cluster) m.getTag();
+            LatLng to = nextPositions.get(previous.getPinIds().get(0));
+            if (to != null && !to.equals(m.getPosition())) {
+                // no longer clickable while it slides into the cluster that replaces it
+                m.setTag(null);
+                animate(m, to, true);
+            } else {
+                cancelAnimation(m);
+                m.remove();
+            }
+        }
+        markers = next;
+    }
+
+    /**
+     * Slides a marker to position, replacing any animation it is already running.
+     */
+    private void animate(final Marker m, LatLng position, final boolean removeAtEnd) {
+        cancelAnimation(m);
+        final ValueAnimator animator = ValueAnimator.ofObject(new TypeEvaluator<LatLng>() {
+            @Override
+            public LatLng evaluate(float fraction, LatLng start, LatLng end) {
+                return new LatLng(start.latitude + (end.latitude - start.latitude) * fraction,
+                        start.longitude + (end.longitude - start.longitude) * fraction);
+            }
+        }, m.getPosition(), position);
+        animator.setDuration(ANIMATION_MILLIS);
+        animator.addUpdateListener(new ValueAnimator.AnimatorUpdateListener() {
+            @Override
+            public void onAnimationUpdate(ValueAnimator animation) {
+                m.setPosition((LatLng) animation.getAnimatedValue());
+            }
+        });
+        animator.addListener(new AnimatorListenerAdapter() {
+            @Override
+            public void onAnimationEnd(Animator animation) {
+                if (animations.get(m) == animator) {
+                    animations.remove(m);
+                }
+                if (removeAtEnd) {
+                    m.remove();
+                }
+            }
+        });
+        animations.put(m, animator);
+        animator.start();
+    }
+
+    private void cancelAnimation(Marker m) {
+        ValueAnimator animator = animations.remove(m);
+        if (animator != null) {
+            animator.cancel();
+        }
+    }
+
+    /**
+     * Returns the badge for a cluster size. Sizes from 10 up are rounded down to a bucket
+     * ("10+", "20+", ...) so only a handful of bitmaps are ever created.
+     */
+    private BitmapDescriptor getBadgeIcon(int size) {
+        int bucket = size;
+        for (int b : BADGE_BUCKETS) {
+            if (size >= b) bucket = b;
+        }
+        BitmapDescriptor icon = badgeIcons.get(bucket);
+        if (icon == null) {
+            String text = bucket < BADGE_BUCKETS[0] ? String.valueOf(bucket) : bucket + "+";
+            icon = BitmapDescriptorFactory.fromBitmap(drawBadge(text));
+            badgeIcons.put(bucket, icon);
+        }
+        return icon;
+    }
+
+    private Bitmap drawBadge(String text) {
+        float density = context.getResources().getDisplayMetrics().density;
+        int size = (int) (BADGE_SIZE_DP * density);
+        Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+
+        Paint circle = new Paint(Paint.ANTI_ALIAS_FLAG);
+        circle.setColor(ContextCompat.getColor(context, R.color.colorAccent));
+        canvas.drawCircle(size / 2f, size / 2f, size / 2f, circle);
+
+        Paint label = new Paint(Paint.ANTI_ALIAS_FLAG);
+        label.setColor(0xFFFFFFFF);
+        label.setTextAlign(Paint.Align.CENTER);
+        label.setTypeface(Typeface.DEFAULT_BOLD);
+        label.setTextSize(size * 0.4f);
+        float baseline = size / 2f - (label.descent() + label.ascent()) / 2;
+        canvas.drawText(text, size / 2f, baseline, label);
+        return bitmap;
+    }
+}
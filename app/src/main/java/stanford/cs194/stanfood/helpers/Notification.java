@@ -5,25 +5,32 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationManagerCompat;
 import android.util.Log;
 
 import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.Query;
 import com.google.firebase.database.ValueEventListener;
 
 import stanford.cs194.stanfood.R;
 import stanford.cs194.stanfood.activities.MapsActivity;
 import stanford.cs194.stanfood.database.Database;
 import stanford.cs194.stanfood.models.Event;
+import stanford.cs194.stanfood.models.Food;
 
 public class Notification {
     final private String CHANNEL_ID = "123";
     final private long DEFAULT_NOTIFICATION_TIMEOUT_MS = 3600000; // 1 hour
+    final private long PHOTO_WAIT_MS = 600000; // 10 minutes
     final private Context context;
     final private Database db;
     private NotificationManagerCompat notificationManagerCompat;
@@ -70,8 +77,8 @@ public class Notification {
 
     private void sendNotificationWithEventDetails(final String eventId, final Event event) {
         // Get general details to attach to the push notification
-        String title = context.getResources().getString(R.string.new_event_notification_title);
-        int notificationId = (int) System.currentTimeMillis();
+        final String title = context.getResources().getString(R.string.new_event_notification_title);
+        final int notificationId = (int) System.currentTimeMillis();
 
         // Get event details to attach to the push notification
         String name = event.getName();
@@ -79,7 +86,7 @@ public class Notification {
         String location = event.getLocationName();
         String description = event.getDescription();
         String pinId = event.getPinId();
-        String body = String.format("%s at %s, %s", name, time, location);
+        final String body = String.format("%s at %s, %s", name, time, location);
 
         // Create a new intent that will open the main MapsActivity with the event popup fragment
         Intent intent = new Intent(context, MapsActivity.class);
@@ -98,10 +105,74 @@ public class Notification {
         // notification is tapped
         intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK
                 | Intent.FLAG_ACTIVITY_SINGLE_TOP | Intent.FLAG_ACTIVITY_CLEAR_TOP);
-        PendingIntent pendingIntent = PendingIntent.getActivity(context, notificationId, intent,
+        final PendingIntent pendingIntent = PendingIntent.getActivity(context, notificationId, intent,
                 PendingIntent.FLAG_UPDATE_CURRENT);
 
-        sendNotification(title, body, notificationId, pendingIntent);
+        sendWithFoodThumbnail(eventId, title, body, notificationId, pendingIntent);
+    }
+
+    /**
+     * Sends the notification with the thumbnail of the event's food photo, at the size of a
+     * notification icon. Notifications are sent as soon as the event is written, usually
+     * before its photo has finished uploading, so if the food item has no thumbnail yet the
+     * notification is sent without one and updated once the thumbnail is stored.
+     * Only the thumbnail is used, so a notification never downloads the full photo.
+     */
+    private void sendWithFoodThumbnail(String eventId, final String title, final String body,
+                                       final int notificationId, final PendingIntent pendingIntent) {
+        final Query foodQuery = db.dbRef.child("food").orderByChild("eventId").equalTo(eventId);
+        final Handler handler = new Handler(Looper.getMainLooper());
+        final ValueEventListener foodListener = new ValueEventListener() {
+            private boolean sent;
+
+            @Override
+            public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
+                String thumbnailPath = null;
+                for(DataSnapshot ds : dataSnapshot.getChildren()) {
+                    Food food = ds.getValue(Food.class);
+                    if(food != null && food.getThumbnailPath() != null) {
+                        thumbnailPath = food.getThumbnailPath();
+                    }
+                }
+                if(thumbnailPath == null) {
+                    if(!sent) {
+                        sent = true;
+                        sendNotification(title, body, notificationId, pendingIntent, null);
+                    }
+                    return;
+                }
+                foodQuery.removeEventListener(this);
+                handler.removeCallbacksAndMessages(null);
+                int size = context.getResources()
+                        .getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
+                ImageLoader.getInstance().load(thumbnailPath, size, new ImageLoader.OnImageLoadedListener() {
+                    @Override
+                    public void onImageLoaded(@Nullable Bitmap thumbnail) {
+                        if(thumbnail == null && sent) return;
+                        sent = true;
+                        sendNotification(title, body, notificationId, pendingIntent, thumbnail);
+                    }
+                });
+            }
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError databaseError) {
+                Log.e("ERROR",databaseError.toString());
+                handler.removeCallbacksAndMessages(null);
+                if(!sent) {
+                    sent = true;
+                    sendNotification(title, body, notificationId, pendingIntent, null);
+                }
+            }
+        };
+        foodQuery.addValueEventListener(foodListener);
+        // a photo that takes longer than this is left out of the notification
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                foodQuery.removeEventListener(foodListener);
+            }
+        }, PHOTO_WAIT_MS);
     }
 
     /**
@@ -112,9 +183,10 @@ public class Notification {
      * @param notificationId - unique id to interact with the notification in the future,
      *                       e.g. cancel the notification
      * @param pendingIntent - the intent to be called when the user taps on the push notification
+     * @param largeIcon - picture shown next to the content, or null for none
      */
     public void sendNotification(final String title, final String content, final int notificationId,
-                                 PendingIntent pendingIntent) {
+                                 PendingIntent pendingIntent, @Nullable Bitmap largeIcon) {
         Log.d("Notification", "Sending notification with title: " + title
                 + ", content: " + content + ", notificationId: " + notificationId);
 
@@ -125,7 +197,12 @@ public class Notification {
                 .setTimeoutAfter(DEFAULT_NOTIFICATION_TIMEOUT_MS)
                 .setPriority(NotificationCompat.PRIORITY_DEFAULT)
                 .setContentIntent(pendingIntent)
+                // updating a notification with its photo doesn't alert again
+                .setOnlyAlertOnce(true)
                 .setAutoCancel(true);
+        if (largeIcon != null) {
+            mBuilder.setLargeIcon(largeIcon);
+        }
 
         notificationManagerCompat.notify(notificationId, mBuilder.build());
     }
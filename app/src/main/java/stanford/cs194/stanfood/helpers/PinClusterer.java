@@ -0,0 +1,113 @@
+package stanford.cs194.stanfood.helpers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Grid-based clustering of pins for a zoom level.
+ * Pins are projected to map pixel coordinates at the given zoom and grouped by the
+ * square grid cell they fall into, so the number of clusters is bounded by the number
+ * of cells rather than the number of pins.
+ */
+public class PinClusterer {
+    private static final double TILE_SIZE = 256;
+
+    public static class Item {
+        private final String pinId;
+        private final double latitude;
+        private final double longitude;
+
+        public Item(String pinId, double latitude, double longitude) {
+            this.pinId = pinId;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+
+        public String getPinId() { return pinId; }
+        public double getLatitude() { return latitude; }
+        public double getLongitude() { return longitude; }
+    }
+
+    public static class Cluster {
+        private final String key;
+        private final ArrayList<String> pinIds = new ArrayList<>();
+        private double latitudeSum;
+        private double longitudeSum;
+        private double minLatitude = Double.MAX_VALUE;
+        private double maxLatitude = -Double.MAX_VALUE;
+        private double minLongitude = Double.MAX_VALUE;
+        private double maxLongitude = -Double.MAX_VALUE;
+
+        private Cluster(String key) {
+            this.key = key;
+        }
+
+        private void add(Item item) {
+            pinIds.add(item.pinId);
+            latitudeSum += item.latitude;
+            longitudeSum += item.longitude;
+            minLatitude = Math.min(minLatitude, item.latitude);
+            maxLatitude = Math.max(maxLatitude, item.latitude);
+            minLongitude = Math.min(minLongitude, item.longitude);
+            maxLongitude = Math.max(maxLongitude, item.longitude);
+        }
+
+        /**
+         * Returns a key identifying the cluster: the pin id for a single pin,
+         * the grid cell for a group of pins.
+         */
+        public String getKey() {
+            return pinIds.size() == 1 ? "pin:" + pinIds.get(0) : key;
+        }
+
+        public List<String> getPinIds() { return pinIds; }
+        public int getSize() { return pinIds.size(); }
+
+        // position of the cluster marker: the centroid of its pins
+        public double getLatitude() { return latitudeSum / pinIds.size(); }
+        public double getLongitude() { return longitudeSum / pinIds.size(); }
+
+        public double getMinLatitude() { return minLatitude; }
+        public double getMaxLatitude() { return maxLatitude; }
+        public double getMinLongitude() { return minLongitude; }
+        public double getMaxLongitude() { return maxLongitude; }
+    }
+
+    /**
+     * Groups items into clusters for the given zoom level.
+     *
+     * @param items - pins to cluster
+     * @param zoom - map zoom level, rounded down to a whole level
+     * @param cellSize - size of a grid cell in density-independent pixels
+     */
+    public static List<Cluster> cluster(Collection<Item> items, float zoom, double cellSize) {
+        int zoomLevel = (int) Math.floor(zoom);
+        double worldSize = TILE_SIZE * Math.pow(2, zoomLevel);
+        HashMap<String, Cluster> cells = new HashMap<>();
+        for (Item item : items) {
+            long cellX = (long) Math.floor(projectX(item.longitude, worldSize) / cellSize);
+            long cellY = (long) Math.floor(projectY(item.latitude, worldSize) / cellSize);
+            String key = "cell:" + zoomLevel + ":" + cellX + ":" + cellY;
+            Cluster cluster = cells.get(key);
+            if (cluster == null) {
+                cluster = new Cluster(key);
+                cells.put(key, cluster);
+            }
+            cluster.add(item);
+        }
+        return new ArrayList<>(cells.values());
+    }
+
+    // Web Mercator projection, as used by Google Maps
+    private static double projectX(double longitude, double worldSize) {
+        return (longitude + 180) / 360 * worldSize;
+    }
+
+    private static double projectY(double latitude, double worldSize) {
+        double sinY = Math.sin(Math.toRadians(latitude));
+        sinY = Math.min(Math.max(sinY, -0.9999), 0.9999);
+        return (0.5 - Math.log((1 + sinY) / (1 - sinY)) / (4 * Math.PI)) * worldSize;
+    }
+}
@@ -0,0 +1,95 @@
+package stanford.cs194.stanfood.helpers;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import stanford.cs194.stanfood.database.PinEventCounter;
+
+/**
+ * Finds pins without events in a date range on a background thread and posts the
+ * result back to the main thread.
+ * Several requests may be in flight at once. cancel() drops all of them, so results
+ * computed for a previous date range or location never reach their listener.
+ */
+public class PinDateRangeFilter {
+    private final PinEventCounter counter;
+    private final ExecutorService executor;
+    private final Handler mainHandler;
+    private final ArrayList<Future<?>> pending;
+    private int generation;
+
+    public interface OnPinsFilteredListener {
+        void onPinsFiltered(List<String> emptyPinIds);
+    }
+
+    public PinDateRangeFilter(PinEventCounter counter) {
+        this.counter = counter;
+        this.executor = Executors.newSingleThreadExecutor();
+        this.mainHandler = new Handler(Looper.getMainLooper());
+        this.pending = new ArrayList<>();
+    }
+
+    /**
+     * Counts the events of pinIds between start and end, then calls listener on the
+     * main thread with the pins that have none. Must be called from the main thread.
+     */
+    public void filter(List<String> pinIds, Date start, Date end,
+                       final OnPinsFilteredListener listener) {
+        final int requestGeneration = generation;
+        final List<String> ids = new ArrayList<>(pinIds);
+        final long startTime = start.getTime();
+        final long endTime = end.getTime();
+        final Future<?>[] future = new Future<?>[1];
+        future[0] = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                HashMap<String, Integer> counts = counter.countEvents(ids, startTime, endTime);
+                if (Thread.currentThread().isInterrupted()) return;
+                final List<String> emptyPinIds = new ArrayList<>();
+                for (String pinId : ids) {
+                    Integer count = counts.get(pinId);
+                    if (count != null && count == 0) {
+                        emptyPinIds.add(pinId);
+                    }
+                }
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        pending.remove(future[0]);
+                        if (requestGeneration == generation) {
+                            listener.onPinsFiltered(emptyPinIds);
+                        }
+                    }
+                });
+            }
+        });
+        pending.add(future[0]);
+    }
+
+    /**
+     * Cancels all requests in flight. Must be called from the main thread.
+     */
+    public void cancel() {
+        generation++;
+        for (Future<?> future : pending) {
+            future.cancel(true);
+        }
+        pending.clear();
+    }
+
+    /**
+     * Cancels pending work and stops the background thread.
+     */
+    public void shutdown() {
+        cancel();
+        executor.shutdownNow();
+    }
+}
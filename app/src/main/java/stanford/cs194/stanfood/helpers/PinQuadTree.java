@@ -0,0 +1,133 @@
+package stanford.cs194.stanfood.helpers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * In-memory point quadtree over pin coordinates, used to find the pins inside the
+ * camera bounds without scanning every loaded pin.
+ * Pins are keyed by pinId: putting a pin that is already in the tree moves it.
+ */
+public class PinQuadTree {
+    private static final int NODE_CAPACITY = 16;
+    private static final int MAX_DEPTH = 20;
+
+    private final HashMap<String, PinClusterer.Item> items = new HashMap<>();
+    private Node root = new Node(-90, 90, -180, 180, 0);
+
+    public void put(PinClusterer.Item item) {
+        PinClusterer.Item previous = items.put(item.getPinId(), item);
+        if (previous != null) {
+            root.remove(previous);
+        }
+        root.insert(item);
+    }
+
+    /**
+     * Removes a pin from the tree.
+     * @return true if the pin was in the tree
+     */
+    public boolean remove(String pinId) {
+        PinClusterer.Item item = items.remove(pinId);
+        if (item == null) {
+            return false;
+        }
+        root.remove(item);
+        return true;
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    public void clear() {
+        items.clear();
+        root = new Node(-90, 90, -180, 180, 0);
+    }
+
+    /**
+     * Returns the pins inside the given latitude/longitude rectangle (inclusive).
+     */
+    public List<PinClusterer.Item> query(double minLat, double maxLat, double minLng, double maxLng) {
+        ArrayList<PinClusterer.Item> result = new ArrayList<>();
+        root.query(minLat, maxLat, minLng, maxLng, result);
+        return result;
+    }
+
+    private static class Node {
+        private final double minLat, maxLat, minLng, maxLng;
+        private final int depth;
+        private ArrayList<PinClusterer.Item> bucket = new ArrayList<>();
+        private Node[] children;
+
+        Node(double minLat, double maxLat, double minLng, double maxLng, int depth) {
+            this.minLat = minLat;
+            this.maxLat = maxLat;
+            this.minLng = minLng;
+            this.maxLng = maxLng;
+            this.depth = depth;
+        }
+
+        void insert(PinClusterer.Item item) {
+            if (children != null) {
+                childFor(item).insert(item);
+                return;
+            }
+            bucket.add(item);
+            if (bucket.size() > NODE_CAPACITY && depth < MAX_DEPTH) {
+                split();
+            }
+        }
+
+        void remove(PinClusterer.Item item) {
+            if (children != null) {
+                childFor(item).remove(item);
+            } else {
+                bucket.remove(item);
+            }
+        }
+
+        void query(double qMinLat, double qMaxLat, double qMinLng, double qMaxLng,
+                   List<PinClusterer.Item> result) {
+            if (qMinLat > maxLat || qMaxLat < minLat || qMinLng > maxLng || qMaxLng < minLng) {
+                return;
+            }
+            if (children != null) {
+                for (Node child : children) {
+                    child.query(qMinLat, qMaxLat, qMinLng, qMaxLng, result);
+                }
+                return;
+            }
+            for (PinClusterer.Item item : bucket) {
+                double lat = item.getLatitude();
+                double lng = item.getLongitude();
+                if (lat >= qMinLat && lat <= qMaxLat && lng >= qMinLng && lng <= qMaxLng) {
+                    result.add(item);
+                }
+            }
+        }
+
+        private void split() {
+            double midLat = (minLat + maxLat) / 2;
+            double midLng = (minLng + maxLng) / 2;
+            children = new Node[] {
+                    new Node(minLat, midLat, minLng, midLng, depth + 1),
+                    new Node(minLat, midLat, midLng, maxLng, depth + 1),
+                    new Node(midLat, maxLat, minLng, midLng, depth + 1),
+                    new Node(midLat, maxLat, midLng, maxLng, depth + 1)
+            };
+            for (PinClusterer.Item item : bucket) {
+                childFor(item).insert(item);
+            }
+            bucket = null;
+        }
+
+        private Node childFor(PinClusterer.Item item) {
+            double midLat = (minLat + maxLat) / 2;
+            double midLng = (minLng + maxLng) / 2;
+            int index = (item.getLatitude() >= midLat ? 2 : 0) + (item.getLongitude() >= midLng ? 1 : 0);
+            return children[index];
+        }
+    }
+}
@@ -2,28 +2,189 @@ package stanford.cs194.stanfood.helpers;
 
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
-import java.util.Locale;
+import java.util.HashMap;
+import java.util.TimeZone;
 
+/**
+ * Date and time formatting shared by the whole app.
+ * SimpleDateFormat and Calendar are not thread-safe, so each thread gets its own cached
+ * instances instead of building new ones on every call.
+ * Cached formatters are rebuilt with the current time zone and locale after
+ * onTimeSettingsChanged, which App calls when the device's time zone or locale changes.
+ */
 public class TimeDateUtils {
+    public static final String MAP_CLOCK_PATTERN = "EEE, MMM d hh:mm aaa, ''yy";
+    public static final String DATE_PATTERN = "yyyy-MM-dd";
+    public static final String TIME_PATTERN = "H:mm";
+
+    // bumped when the time zone or locale changes, so threads rebuild their formatters
+    private static volatile int settingsVersion;
+
+    private static final ThreadLocal<HashMap<String, SimpleDateFormat>> formats =
+            new ThreadLocal<HashMap<String, SimpleDateFormat>>() {
+                @Override
+                protected HashMap<String, SimpleDateFormat> initialValue() {
+                    return new HashMap<>();
+                }
+            };
+
+    private static final ThreadLocal<RangeFormatter> rangeFormatters =
+            new ThreadLocal<RangeFormatter>() {
+                @Override
+                protected RangeFormatter initialValue() {
+                    return new RangeFormatter();
+                }
+            };
+
+    private static final ThreadLocal<int[]> formatVersions =
+            new ThreadLocal<int[]>() {
+                @Override
+                protected int[] initialValue() {
+                    return new int[]{settingsVersion};
+                }
+            };
+
+    /**
+     * Drops the cached formatters of every thread, so they pick up a new default time zone
+     * or locale the next time they are used.
+     */
+    public static void onTimeSettingsChanged() {
+        settingsVersion++;
+    }
+
+    /**
+     * Returns this thread's formatter for a pattern. It must not be passed to other threads.
+     */
+    public static SimpleDateFormat getFormat(String pattern) {
+        HashMap<String, SimpleDateFormat> threadFormats = formats.get();
+        int[] version = formatVersions.get();
+        if (version[0] != settingsVersion) {
+            version[0] = settingsVersion;
+            threadFormats.clear();
+        }
+        SimpleDateFormat format = threadFormats.get(pattern);
+        if (format == null) {
+            format = new SimpleDateFormat(pattern);
+            threadFormats.put(pattern, format);
+        }
+        return format;
+    }
 
     /**
      * Given the start time and duration, returns the time range.
      *
      * E.g. given [Mon Jan 15, 4:30PM] and duration [90 min] in milliseconds,
-     * return the string "Mon Jan 15, 4:30PM - 6:00PM"
+     * return the string "Mon Jan 15, 04:30 - 06:00PM"
+     * Ranges are cached per thread, so rebinding the same event returns the same string.
      */
     public static String getEventTimeRange(long startTimeInMillis, long durationInMillis) {
-        // set start time
-        Calendar startTime = Calendar.getInstance();
-        startTime.setTimeInMillis(startTimeInMillis);
-        // set end time
-        Calendar endTime = Calendar.getInstance();
-        endTime.setTimeInMillis(startTimeInMillis + durationInMillis);
-
-        SimpleDateFormat startFormat = new SimpleDateFormat("E MMM dd, hh:mm", Locale.US);
-        SimpleDateFormat endFormat = new SimpleDateFormat("hh:mma", Locale.US);
-        String startTimeStr = startFormat.format(startTime.getTime());
-        String endTimeStr = endFormat.format(endTime.getTime());
-        return startTimeStr + " - " + endTimeStr;
+        RangeFormatter formatter = rangeFormatters.get();
+        if (formatter.version != settingsVersion) {
+            formatter = new RangeFormatter();
+            rangeFormatters.set(formatter);
+        }
+        return formatter.format(startTimeInMillis, durationInMillis);
+    }
+
+    /**
+     * Formats ranges as "E MMM dd, hh:mm - hh:mma" by hand, without SimpleDateFormat.
+     * Results are kept in a small direct-mapped cache, and the day prefix of the last
+     * formatted day is reused, so a range within an already seen day only computes the
+     * two times of day.
+     */
+    private static class RangeFormatter {
+        private static final int CACHE_BITS = 8;
+        private static final int CACHE_SIZE = 1 << CACHE_BITS;
+        private static final String[] DAYS = {"Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat"};
+        private static final String[] MONTHS = {"Jan", "Feb", "Mar", "Apr", "May", "Jun",
+                "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"};
+
+        private final int version = settingsVersion;
+        private final Calendar calendar = Calendar.getInstance();
+        private final TimeZone timeZone = calendar.getTimeZone();
+        private final StringBuilder builder = new StringBuilder(32);
+
+        private final long[] cachedStarts = new long[CACHE_SIZE];
+        private final long[] cachedDurations = new long[CACHE_SIZE];
+        private final String[] cachedRanges = new String[CACHE_SIZE];
+
+        // the last day formatted: [dayStart, dayEnd) in ms, and its "E MMM dd, " prefix
+        private long dayStart = 1;
+        private long dayEnd = 0;
+        private String dayPrefix;
+
+        String format(long start, long duration) {
+            // Fibonacci hashing: times are multiples of a minute, so only the high bits mix well
+            int slot = (int) (((start + duration * 31) * 0x9E3779B97F4A7C15L) >>> (64 - CACHE_BITS));
+            String range = cachedRanges[slot];
+            if (range != null && cachedStarts[slot] == start && cachedDurations[slot] == duration) {
+                return range;
+            }
+
+            if (start < dayStart || start >= dayEnd) {
+                setDay(start);
+            }
+            long end = start + duration;
+            builder.setLength(0);
+            builder.append(dayPrefix);
+            appendTime(start, false);
+            builder.append(" - ");
+            appendTime(end, true);
+            range = builder.toString();
+
+            cachedStarts[slot] = start;
+            cachedDurations[slot] = duration;
+            cachedRanges[slot] = range;
+            return range;
+        }
+
+        private void setDay(long time) {
+            calendar.setTimeInMillis(time);
+            builder.setLength(0);
+            builder.append(DAYS[calendar.get(Calendar.DAY_OF_WEEK) - 1]).append(' ')
+                    .append(MONTHS[calendar.get(Calendar.MONTH)]).append(' ');
+            appendTwoDigits(calendar.get(Calendar.DAY_OF_MONTH));
+            builder.append(", ");
+            dayPrefix = builder.toString();
+
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+            calendar.set(Calendar.MINUTE, 0);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            dayStart = calendar.getTimeInMillis();
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+            dayEnd = calendar.getTimeInMillis();
+        }
+
+        /**
+         * Appends the time of day as hh:mm, or hh:mma with the AM/PM marker.
+         * Times within the current day, with no offset change since midnight, are computed
+         * from the milliseconds since midnight; others go through the Calendar.
+         */
+        private void appendTime(long time, boolean withMarker) {
+            int hourOfDay;
+            int minute;
+            if (time >= dayStart && time < dayEnd
+                    && timeZone.getOffset(time) == timeZone.getOffset(dayStart)) {
+                int minuteOfDay = (int) ((time - dayStart) / 60000);
+                hourOfDay = minuteOfDay / 60;
+                minute = minuteOfDay % 60;
+            } else {
+                calendar.setTimeInMillis(time);
+                hourOfDay = calendar.get(Calendar.HOUR_OF_DAY);
+                minute = calendar.get(Calendar.MINUTE);
+            }
+            int hour = hourOfDay % 12;
+            appendTwoDigits(hour == 0 ? 12 : hour);
+            builder.append(':');
+            appendTwoDigits(minute);
+            if (withMarker) {
+                builder.append(hourOfDay < 12 ? "AM" : "PM");
+            }
+        }
+
+        private void appendTwoDigits(int value) {
+            builder.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+        }
     }
 }
@@ -1,6 +1,7 @@
 package stanford.cs194.stanfood.models;
 
 import java.util.Date;
+import java.util.Locale;
 
 public class Event implements Comparable<Event> {
     private String eventId;
@@ -11,6 +12,7 @@ public class Event implements Comparable<Event> {
     private long timeStart;
     private long duration;
     private String userId;
+    private String pinTimeStart;
 
     public Event() {}
 
@@ -25,6 +27,14 @@ public class Event implements Comparable<Event> {
         this.userId = userId;
     }
 
+    /**
+     * Returns the composite key "pinId_timeStart" used to query the events of a pin
+     * within a time range. timeStart is zero-padded so keys sort in time order.
+     */
+    public static String getPinTimeKey(String pinId, long timeStart) {
+        return pinId + "_" + String.format(Locale.US, "%015d", timeStart);
+    }
+
     public String getEventId() {
         return eventId;
     }
@@ -78,16 +88,36 @@ public class Event implements Comparable<Event> {
     }
 
     public boolean eventExpired(){
-        Date timeExpire = new Date(timeStart + duration);
-        return timeExpire.before(new Date());
+        return eventExpired(new Date().getTime());
+    }
+
+    /**
+     * Returns true if the event ended before the given time (in ms).
+     */
+    public boolean eventExpired(long now){
+        return timeStart + duration < now;
     }
 
     public String getUserId() {
         return userId;
     }
 
+    /**
+     * Built on first use, since most events are only created to be read.
+     */
+    public String getPinTimeStart() {
+        if (pinTimeStart == null && pinId != null) {
+            pinTimeStart = getPinTimeKey(pinId, timeStart);
+        }
+        return pinTimeStart;
+    }
+
+    public void setPinTimeStart(String pinTimeStart) {
+        this.pinTimeStart = pinTimeStart;
+    }
+
     @Override
     public int compareTo(Event o) {
-        return Long.valueOf(getTimeStart()).compareTo(Long.valueOf(o.getTimeStart()));
+        return timeStart < o.timeStart ? -1 : (timeStart == o.timeStart ? 0 : 1);
     }
 }
\ No newline at end of file
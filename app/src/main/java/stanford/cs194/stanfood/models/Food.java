@@ -5,7 +5,14 @@ public class Food {
     private String foodId;
     private String eventId;
     private String description;
+    // full size photo, and smaller copies of it for lists and popups
     private String imagePath;
+    private String mediumPath;
+    private String thumbnailPath;
+    // storage path of the full size photo, which the smaller ones extend with their name
+    private String storagePath;
+    // SHA-256 of the photo as taken, shared by food items that reuse the same photo
+    private String imageHash;
 
     public Food() {}
 
@@ -42,4 +49,20 @@ public class Food {
     public String getImagePath() { return imagePath; }
 
     public void setImagePath(String imagePath) { this.imagePath = imagePath; }
+
+    public String getMediumPath() { return mediumPath; }
+
+    public void setMediumPath(String mediumPath) { this.mediumPath = mediumPath; }
+
+    public String getThumbnailPath() { return thumbnailPath; }
+
+    public void setThumbnailPath(String thumbnailPath) { this.thumbnailPath = thumbnailPath; }
+
+    public String getStoragePath() { return storagePath; }
+
+    public void setStoragePath(String storagePath) { this.storagePath = storagePath; }
+
+    public String getImageHash() { return imageHash; }
+
+    public void setImageHash(String imageHash) { this.imageHash = imageHash; }
 }
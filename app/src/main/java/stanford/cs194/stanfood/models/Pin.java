@@ -9,6 +9,7 @@ public class Pin {
     private LatLngWrapper locationCoordinate;
     private String locationName;
     private int numEvents;
+    private String geohash;
 
     public Pin() {}
 
@@ -51,4 +52,12 @@ public class Pin {
     public int getNumEvents() {
         return numEvents;
     }
-}
\ No newline at end of file
+
+    public String getGeohash() {
+        return geohash;
+    }
+
+    public void setGeohash(String geohash) {
+        this.geohash = geohash;
+    }
+}
@@ -0,0 +1,135 @@
+package stanford.cs194.stanfood.database;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import stanford.cs194.stanfood.models.Event;
+import stanford.cs194.stanfood.models.Food;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that EventArchiver moves expired events like the checkPinEvents cloud function:
+ * into monthly partitions, with their food items, and without leaving user_events or
+ * pin counter entries behind.
+ */
+public class EventArchiverTest {
+    private static final long HOUR = 3600000;
+
+    private LocalEventArchiveStore store;
+    private EventArchiver archiver;
+    private int nextId;
+
+    @Before
+    public void setUp() {
+        store = new LocalEventArchiveStore();
+        archiver = new EventArchiver(store);
+        nextId = 0;
+    }
+
+    private static long utc(int year, int month, int day, int hour) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.US);
+        calendar.clear();
+        calendar.set(year, month, day, hour, 0, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    private Event addEvent(String pinId, String userId, long timeStart, long duration) {
+        Event event = new Event(pinId, "name", "description", "location", timeStart,
+                duration, userId);
+        event.setEventId("event" + nextId++);
+        store.addEvent(event);
+        return event;
+    }
+
+    private Food addFood(Event event) {
+        Food item = new Food(event.getEventId(), "pizza", null);
+        item.setFoodId("food" + nextId++);
+        store.addFood(item);
+        return item;
+    }
+
+    @Test
+    public void getPartition_usesUtcMonth() {
+        Event lastHourOfMarch = new Event("pin", "name", "description", "location",
+                utc(2019, Calendar.MARCH, 31, 23), HOUR, "user");
+        assertEquals("201903", EventArchiver.getPartition(lastHourOfMarch));
+        Event firstHourOfApril = new Event("pin", "name", "description", "location",
+                utc(2019, Calendar.APRIL, 1, 0), HOUR, "user");
+        assertEquals("201904", EventArchiver.getPartition(firstHourOfApril));
+    }
+
+    @Test
+    public void archiveExpired_movesOnlyExpiredEventsAndTheirFood() {
+        long now = utc(2019, Calendar.APRIL, 2, 12);
+        Event march = addEvent("pinA", "user1", utc(2019, Calendar.MARCH, 31, 22), HOUR);
+        Event april = addEvent("pinA", "user1", utc(2019, Calendar.APRIL, 1, 10), HOUR);
+        Event live = addEvent("pinA", "user2", now - HOUR, 2 * HOUR);
+        Food marchFood = addFood(march);
+        Food liveFood = addFood(live);
+
+        assertEquals(2, archiver.archiveExpired(now));
+
+        assertEquals(1, store.getLiveEvents().size());
+        assertSame(live, store.getLiveEvents().get(0));
+        assertEquals(1, store.getLiveFood().size());
+        assertSame(liveFood, store.getLiveFood().get(0));
+        assertEquals(1, store.getArchivedEvents("201903").size());
+        assertSame(march, store.getArchivedEvents("201903").get(0));
+        assertSame(marchFood, store.getArchivedFood("201903").get(0));
+        assertEquals(1, store.getArchivedEvents("201904").size());
+        assertSame(april, store.getArchivedEvents("201904").get(0));
+        assertTrue(store.getArchivedFood("201904").isEmpty());
+    }
+
+    @Test
+    public void archiveExpired_removesUserEventsAndPinCounterEntries() {
+        long now = utc(2019, Calendar.APRIL, 2, 12);
+        Event expired = addEvent("pinA", "user1", now - 3 * HOUR, HOUR);
+        addEvent("pinA", "user1", now - HOUR, 2 * HOUR);
+        addEvent("pinB", "user2", now - 5 * HOUR, HOUR);
+        assertEquals(2, store.getPinEventCount("pinA"));
+
+        archiver.archiveExpired(now);
+
+        assertEquals(1, store.getPinEventCount("pinA"));
+        assertEquals(0, store.getPinEventCount("pinB"));
+        assertEquals(1, store.getUserEvents("user1").size());
+        assertFalse(store.getUserEvents("user1").contains(expired.getEventId()));
+        assertTrue(store.getUserEvents("user2").isEmpty());
+    }
+
+    @Test
+    public void archiveExpired_archivesMoreThanOneBatch() {
+        long now = utc(2019, Calendar.APRIL, 2, 12);
+        int expiredCount = EventArchiver.BATCH_SIZE * 2 + 5;
+        for (int i = 0; i < expiredCount; i++) {
+            addEvent("pinA", "user1", now - 10 * HOUR + i, HOUR);
+        }
+        addEvent("pinA", "user1", now, HOUR);
+
+        assertEquals(expiredCount, archiver.archiveExpired(now));
+        assertEquals(1, store.getLiveEvents().size());
+        assertEquals(1, store.getPinEventCount("pinA"));
+        assertEquals(0, archiver.archiveExpired(now));
+    }
+
+    @Test
+    public void archiveExpired_stopsWhenAWriteFails() {
+        long now = utc(2019, Calendar.APRIL, 2, 12);
+        addEvent("pinA", "user1", now - 3 * HOUR, HOUR);
+        store.setFailWrites(true);
+
+        assertEquals(0, archiver.archiveExpired(now));
+        assertEquals(1, store.getLiveEvents().size());
+        assertEquals(1, store.getPinEventCount("pinA"));
+
+        store.setFailWrites(false);
+        assertEquals(1, archiver.archiveExpired(now));
+        assertTrue(store.getLiveEvents().isEmpty());
+    }
+}
@@ -0,0 +1,74 @@
+package stanford.cs194.stanfood.database;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
+import stanford.cs194.stanfood.models.Event;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that LocalPinEventCounter answers like the getNumEventsBatch cloud function,
+ * so it can stand in for it.
+ */
+public class LocalPinEventCounterTest {
+    private LocalPinEventCounter counter;
+
+    @Before
+    public void setUp() {
+        counter = new LocalPinEventCounter();
+        counter.addEvent(newEvent("pinA", 1000));
+        counter.addEvent(newEvent("pinA", 2000));
+        counter.addEvent(newEvent("pinA", 3000));
+        counter.addEvent(newEvent("pinB", 2500));
+        counter.addEvent(newEvent("pinC", 5000));
+    }
+
+    private static Event newEvent(String pinId, long timeStart) {
+        return new Event(pinId, "name", "description", "location", timeStart, 60000, "user");
+    }
+
+    @Test
+    public void countEvents_countsEventsStartingInRange() {
+        HashMap<String, Integer> counts = counter.countEvents(Arrays.asList("pinA", "pinB"), 1500, 2600);
+        assertEquals(2, counts.size());
+        assertEquals(Integer.valueOf(1), counts.get("pinA"));
+        assertEquals(Integer.valueOf(1), counts.get("pinB"));
+    }
+
+    @Test
+    public void countEvents_rangeIsInclusive() {
+        HashMap<String, Integer> counts = counter.countEvents(Collections.singletonList("pinA"), 1000, 3000);
+        assertEquals(Integer.valueOf(3), counts.get("pinA"));
+    }
+
+    @Test
+    public void countEvents_pinsWithoutEventsInRangeCountZero() {
+        HashMap<String, Integer> counts = counter.countEvents(Arrays.asList("pinC", "pinD"), 0, 4000);
+        assertEquals(Integer.valueOf(0), counts.get("pinC"));
+        assertEquals(Integer.valueOf(0), counts.get("pinD"));
+    }
+
+    @Test
+    public void countEvents_onlyCountsRequestedPins() {
+        HashMap<String, Integer> counts = counter.countEvents(Collections.singletonList("pinB"), 0, 10000);
+        assertEquals(1, counts.size());
+        assertFalse(counts.containsKey("pinA"));
+    }
+
+    @Test
+    public void countEvents_noPins() {
+        assertTrue(counter.countEvents(Collections.<String>emptyList(), 0, 10000).isEmpty());
+    }
+
+    @Test
+    public void clear_removesAllEvents() {
+        counter.clear();
+        HashMap<String, Integer> counts = counter.countEvents(Collections.singletonList("pinA"), 0, 10000);
+        assertEquals(Integer.valueOf(0), counts.get("pinA"));
+    }
+}
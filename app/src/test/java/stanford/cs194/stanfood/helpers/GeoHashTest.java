@@ -0,0 +1,131 @@
+package stanford.cs194.stanfood.helpers;
+
+import org.junit.Test;
+
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks GeoHash against published geohashes, and that coveringCells contains every point
+ * within the radius, including around cell borders, the antimeridian and the poles.
+ */
+public class GeoHashTest {
+    private static final double METERS_PER_DEGREE = 111320;
+
+    @Test
+    public void encode_matchesKnownGeohashes() {
+        assertEquals("u4pruydqqvj", GeoHash.encode(57.64911, 10.40744, 11));
+        assertEquals("ezs42", GeoHash.encode(42.6, -5.6, 5));
+        assertEquals("s0000000000", GeoHash.encode(0, 0, 11));
+    }
+
+    @Test
+    public void encode_defaultPrecision() {
+        assertEquals(GeoHash.DEFAULT_PRECISION, GeoHash.encode(37.4275, -122.1697).length());
+        assertEquals(GeoHash.encode(37.4275, -122.1697, 5),
+                GeoHash.encode(37.4275, -122.1697).substring(0, 5));
+    }
+
+    @Test
+    public void encode_borderPointsBelongToTheUpperCell() {
+        // the equator and prime meridian split the first character's cells
+        assertEquals("s", GeoHash.encode(0, 0, 1));
+        assertEquals("k", GeoHash.encode(-1e-9, 0, 1));
+        assertEquals("e", GeoHash.encode(0, -1e-9, 1));
+        assertEquals("7", GeoHash.encode(-1e-9, -1e-9, 1));
+    }
+
+    @Test
+    public void encode_extremes() {
+        assertEquals("00000", GeoHash.encode(-90, -180, 5));
+        assertEquals("zzzzz", GeoHash.encode(90, 180, 5));
+        // 180 and -180 are the same meridian but fall in the easternmost and westernmost cells
+        assertEquals("p", GeoHash.encode(-90, 180, 1));
+        assertEquals("0", GeoHash.encode(-90, -180, 1));
+    }
+
+    @Test
+    public void distanceMeters_matchesDegreeLength() {
+        assertEquals(0, GeoHash.distanceMeters(37.4, -122.1, 37.4, -122.1), 1e-6);
+        assertEquals(111195, GeoHash.distanceMeters(0, 0, 1, 0), 1);
+        assertEquals(111195, GeoHash.distanceMeters(0, 179.5, 0, -179.5), 1);
+    }
+
+    @Test
+    public void coveringCells_containsPointsAroundCellBorders() {
+        // the center of a cell, and points on the borders between cells of each size
+        assertCovers(37.4275, -122.1697, 500);
+        assertCovers(0, 0, 50);
+        assertCovers(0, 0, 5000);
+        assertCovers(45, 22.5, 1000);
+        // a corner of the 6 character cells used for a 200m radius
+        double latSpan = 180 / Math.pow(2, 15);
+        double lngSpan = 360 / Math.pow(2, 15);
+        assertCovers(Math.floor(37.4275 / latSpan) * latSpan,
+                Math.floor(-122.1697 / lngSpan) * lngSpan, 200);
+    }
+
+    @Test
+    public void coveringCells_containsPointsAcrossTheAntimeridian() {
+        assertCovers(0, 180, 1000);
+        assertCovers(0, -180, 1000);
+        assertCovers(10, 179.999, 2000);
+        assertCovers(-10, -179.999, 2000);
+
+        Set<String> cells = GeoHash.coveringCells(0, 179.9999, 100);
+        String west = GeoHash.encode(0, -179.9999);
+        assertTrue(cells + " should contain a prefix of " + west, containsPrefix(cells, west));
+    }
+
+    @Test
+    public void coveringCells_containsPointsNearThePoles() {
+        assertCovers(89.99, 0, 500);
+        assertCovers(-89.99, 90, 500);
+        // circles around the pole itself
+        assertCovers(89.999, 45, 500);
+        assertCovers(-89.9999, 0, 500);
+    }
+
+    @Test
+    public void coveringCells_usesTheFinestPrecisionForTheRadius() {
+        Set<String> cells = GeoHash.coveringCells(37.4275, -122.1697, 100);
+        assertEquals(9, cells.size());
+        for (String cell : cells) {
+            // here 7 character cells are about 150m x 120m, 8 character cells 19m x 30m
+            assertEquals(7, cell.length());
+        }
+        assertTrue(cells.contains(GeoHash.encode(37.4275, -122.1697, 7)));
+    }
+
+    /**
+     * Asserts that every sampled point within radiusMeters of the center, in all directions
+     * and at several distances, has a geohash starting with one of the covering cells.
+     */
+    private static void assertCovers(double latitude, double longitude, double radiusMeters) {
+        Set<String> cells = GeoHash.coveringCells(latitude, longitude, radiusMeters);
+        for (int angle = 0; angle < 360; angle += 15) {
+            for (double fraction : new double[] {0, 0.25, 0.5, 0.99}) {
+                double distance = radiusMeters * fraction;
+                double bearing = Math.toRadians(angle);
+                double lat = latitude + distance * Math.cos(bearing) / METERS_PER_DEGREE;
+                double lng = longitude + distance * Math.sin(bearing)
+                        / (METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude)));
+                if (lat > 90 || lat < -90) continue;
+                if (lng > 180) lng -= 360;
+                if (lng < -180) lng += 360;
+                if (GeoHash.distanceMeters(latitude, longitude, lat, lng) > radiusMeters) continue;
+                String hash = GeoHash.encode(lat, lng);
+                assertTrue(hash + " at " + lat + "," + lng + " not in " + cells,
+                        containsPrefix(cells, hash));
+            }
+        }
+    }
+
+    private static boolean containsPrefix(Set<String> cells, String hash) {
+        for (String cell : cells) {
+            if (hash.startsWith(cell)) return true;
+        }
+        return false;
+    }
+}
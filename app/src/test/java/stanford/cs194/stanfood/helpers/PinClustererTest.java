@@ -0,0 +1,130 @@
+package stanford.cs194.stanfood.helpers;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that PinClusterer groups nearby pins at low zoom levels and splits them apart
+ * at the zoom level where they fall into different grid cells.
+ * At zoom z a 64dp cell spans 90 / 2^z degrees of longitude, with borders at multiples
+ * of that from the prime meridian.
+ */
+public class PinClustererTest {
+    private static final double CELL_SIZE = 64;
+
+    private static List<PinClusterer.Item> items(PinClusterer.Item... items) {
+        return Arrays.asList(items);
+    }
+
+    private static PinClusterer.Cluster find(List<PinClusterer.Cluster> clusters, String pinId) {
+        for (PinClusterer.Cluster cluster : clusters) {
+            if (cluster.getPinIds().contains(pinId)) return cluster;
+        }
+        fail(pinId + " is in no cluster");
+        return null;
+    }
+
+    @Test
+    public void cluster_splitsAtTheZoomWhereACellBorderFallsBetweenPins() {
+        // a border at 11.25 degrees first separates them at zoom 3
+        List<PinClusterer.Item> pins = items(new PinClusterer.Item("a", 0, 10),
+                new PinClusterer.Item("b", 0, 20));
+        for (int zoom = 0; zoom <= 2; zoom++) {
+            List<PinClusterer.Cluster> clusters = PinClusterer.cluster(pins, zoom, CELL_SIZE);
+            assertEquals("zoom " + zoom, 1, clusters.size());
+            assertEquals(2, clusters.get(0).getSize());
+        }
+        for (int zoom = 3; zoom <= 21; zoom++) {
+            List<PinClusterer.Cluster> clusters = PinClusterer.cluster(pins, zoom, CELL_SIZE);
+            assertEquals("zoom " + zoom, 2, clusters.size());
+        }
+    }
+
+    @Test
+    public void cluster_roundsZoomDown() {
+        List<PinClusterer.Item> pins = items(new PinClusterer.Item("a", 0, 10),
+                new PinClusterer.Item("b", 0, 20));
+        assertEquals(1, PinClusterer.cluster(pins, 2.99f, CELL_SIZE).size());
+        assertEquals(2, PinClusterer.cluster(pins, 3f, CELL_SIZE).size());
+    }
+
+    @Test
+    public void cluster_largerCellsSplitOneZoomLater() {
+        List<PinClusterer.Item> pins = items(new PinClusterer.Item("a", 0, 10),
+                new PinClusterer.Item("b", 0, 20));
+        assertEquals(1, PinClusterer.cluster(pins, 3, CELL_SIZE * 2).size());
+        assertEquals(2, PinClusterer.cluster(pins, 4, CELL_SIZE * 2).size());
+    }
+
+    @Test
+    public void cluster_neverJoinsPinsAcrossACellBorder() {
+        // the prime meridian is a border at every zoom level
+        List<PinClusterer.Item> pins = items(new PinClusterer.Item("west", 0, -0.000001),
+                new PinClusterer.Item("east", 0, 0.000001));
+        for (int zoom = 0; zoom <= 21; zoom++) {
+            assertEquals("zoom " + zoom, 2, PinClusterer.cluster(pins, zoom, CELL_SIZE).size());
+        }
+    }
+
+    @Test
+    public void cluster_reportsCentroidBoundsAndKeys() {
+        List<PinClusterer.Item> pins = items(new PinClusterer.Item("a", 1, 10),
+                new PinClusterer.Item("b", 3, 14), new PinClusterer.Item("c", 2, 18));
+        List<PinClusterer.Cluster> clusters = PinClusterer.cluster(pins, 0, CELL_SIZE);
+        assertEquals(1, clusters.size());
+        PinClusterer.Cluster cluster = clusters.get(0);
+        assertEquals(3, cluster.getSize());
+        assertEquals(2, cluster.getLatitude(), 1e-9);
+        assertEquals(14, cluster.getLongitude(), 1e-9);
+        assertEquals(1, cluster.getMinLatitude(), 0);
+        assertEquals(3, cluster.getMaxLatitude(), 0);
+        assertEquals(10, cluster.getMinLongitude(), 0);
+        assertEquals(18, cluster.getMaxLongitude(), 0);
+        assertTrue(cluster.getKey().startsWith("cell:0:"));
+
+        // once split, a lone pin is keyed by its pin id
+        PinClusterer.Cluster single = find(PinClusterer.cluster(pins, 21, CELL_SIZE), "a");
+        assertEquals(1, single.getSize());
+        assertEquals("pin:a", single.getKey());
+        assertEquals(1, single.getLatitude(), 0);
+        assertEquals(10, single.getLongitude(), 0);
+    }
+
+    @Test
+    public void cluster_breaksClustersApartAsZoomIncreases() {
+        Random random = new Random(7);
+        ArrayList<PinClusterer.Item> pins = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            // around the Stanford campus
+            pins.add(new PinClusterer.Item("pin" + i, 37.42 + random.nextDouble() * 0.02,
+                    -122.18 + random.nextDouble() * 0.03));
+        }
+        List<PinClusterer.Cluster> previous = PinClusterer.cluster(pins, 0, CELL_SIZE);
+        assertEquals(1, previous.size());
+        for (int zoom = 1; zoom <= 21; zoom++) {
+            List<PinClusterer.Cluster> clusters = PinClusterer.cluster(pins, zoom, CELL_SIZE);
+            int total = 0;
+            for (PinClusterer.Cluster cluster : clusters) {
+                total += cluster.getSize();
+                // cells nest, so a cluster only ever splits, never takes pins from another
+                HashSet<String> parent = new HashSet<>(
+                        find(previous, cluster.getPinIds().get(0)).getPinIds());
+                assertTrue("zoom " + zoom, parent.containsAll(cluster.getPinIds()));
+            }
+            assertEquals(pins.size(), total);
+            assertTrue("zoom " + zoom, clusters.size() >= previous.size());
+            previous = clusters;
+        }
+        // the campus is 2-3km across: at zoom 10 a cell is about 8km, so at most the 4 cells
+        // around a border; at zoom 21 a cell is about 4m, so nearly every pin is alone
+        assertTrue(PinClusterer.cluster(pins, 10, CELL_SIZE).size() <= 4);
+        assertTrue(previous.size() > pins.size() * 9 / 10);
+    }
+}
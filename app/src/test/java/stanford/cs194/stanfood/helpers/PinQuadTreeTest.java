@@ -0,0 +1,162 @@
+package stanford.cs194.stanfood.helpers;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks PinQuadTree queries against a scan of every pin, across the boundaries between
+ * quadrants, and that removed and moved pins are only found where they are now.
+ */
+public class PinQuadTreeTest {
+    private PinQuadTree tree;
+    private ArrayList<PinClusterer.Item> items;
+
+    @Before
+    public void setUp() {
+        tree = new PinQuadTree();
+        items = new ArrayList<>();
+    }
+
+    private PinClusterer.Item put(String pinId, double latitude, double longitude) {
+        PinClusterer.Item item = new PinClusterer.Item(pinId, latitude, longitude);
+        tree.put(item);
+        items.add(item);
+        return item;
+    }
+
+    private static HashSet<String> pinIds(List<PinClusterer.Item> result) {
+        HashSet<String> pinIds = new HashSet<>();
+        for (PinClusterer.Item item : result) {
+            pinIds.add(item.getPinId());
+        }
+        assertEquals("a pin was returned twice", result.size(), pinIds.size());
+        return pinIds;
+    }
+
+    private HashSet<String> scan(double minLat, double maxLat, double minLng, double maxLng) {
+        HashSet<String> pinIds = new HashSet<>();
+        for (PinClusterer.Item item : items) {
+            if (item.getLatitude() >= minLat && item.getLatitude() <= maxLat
+                    && item.getLongitude() >= minLng && item.getLongitude() <= maxLng) {
+                pinIds.add(item.getPinId());
+            }
+        }
+        return pinIds;
+    }
+
+    private void assertQueryMatchesScan(double minLat, double maxLat, double minLng, double maxLng) {
+        assertEquals(scan(minLat, maxLat, minLng, maxLng),
+                pinIds(tree.query(minLat, maxLat, minLng, maxLng)));
+    }
+
+    @Test
+    public void query_matchesScanAcrossQuadrantBoundaries() {
+        // enough pins around the equator and prime meridian to split the root several times
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            put("pin" + i, random.nextDouble() * 2 - 1, random.nextDouble() * 2 - 1);
+        }
+        // straddling the root's split, a deeper split and several at once
+        assertQueryMatchesScan(-0.1, 0.1, -0.1, 0.1);
+        assertQueryMatchesScan(-0.5, 0.5, -1, 1);
+        assertQueryMatchesScan(0.3, 0.8, -0.2, 0.05);
+        assertQueryMatchesScan(-1, 1, -1, 1);
+        for (int i = 0; i < 100; i++) {
+            double lat = random.nextDouble() * 2 - 1;
+            double lng = random.nextDouble() * 2 - 1;
+            assertQueryMatchesScan(lat, lat + random.nextDouble() / 4, lng, lng + random.nextDouble() / 4);
+        }
+    }
+
+    @Test
+    public void query_includesPinsOnQuadrantBoundaries() {
+        for (int i = 0; i < 100; i++) {
+            put("filler" + i, 10 + i * 0.01, 10 + i * 0.01);
+        }
+        // on the root's midlines, which belong to the north and east quadrants
+        put("center", 0, 0);
+        put("equator", 0, -50);
+        put("meridian", -30, 0);
+        put("corner", -90, -180);
+        put("farCorner", 90, 180);
+
+        assertEquals(new HashSet<>(Arrays.asList("center", "equator")),
+                pinIds(tree.query(-1, 0, -60, 0)));
+        assertEquals(new HashSet<>(Arrays.asList("center", "meridian")),
+                pinIds(tree.query(-40, 0, -1, 0)));
+        assertEquals(new HashSet<>(Arrays.asList("center")),
+                pinIds(tree.query(0, 0, 0, 0)));
+        assertTrue(pinIds(tree.query(-90, 90, -180, 180)).containsAll(
+                Arrays.asList("corner", "farCorner", "center")));
+        assertEquals(items.size(), tree.query(-90, 90, -180, 180).size());
+    }
+
+    @Test
+    public void query_returnsPinsAtTheSameCoordinate() {
+        // more pins than a node holds, which can never be split apart
+        for (int i = 0; i < 50; i++) {
+            put("pin" + i, 37.4275, -122.1697);
+        }
+        assertEquals(50, tree.query(37.4, 37.5, -122.2, -122.1).size());
+        assertTrue(tree.query(37.43, 37.5, -122.2, -122.1).isEmpty());
+    }
+
+    @Test
+    public void remove_removesOnlyThatPin() {
+        for (int i = 0; i < 100; i++) {
+            put("pin" + i, i * 0.1, i * 0.1);
+        }
+        assertTrue(tree.remove("pin50"));
+        assertFalse(tree.remove("pin50"));
+        assertFalse(tree.remove("missing"));
+        assertEquals(99, tree.size());
+
+        HashSet<String> found = pinIds(tree.query(-90, 90, -180, 180));
+        assertEquals(99, found.size());
+        assertFalse(found.contains("pin50"));
+        assertTrue(tree.query(4.95, 5.05, 4.95, 5.05).isEmpty());
+        assertEquals(1, tree.query(5.05, 5.15, 5.05, 5.15).size());
+    }
+
+    @Test
+    public void put_movesAPinThatIsAlreadyInTheTree() {
+        for (int i = 0; i < 100; i++) {
+            put("pin" + i, i * 0.1, i * 0.1);
+        }
+        // into another quadrant of the root
+        tree.put(new PinClusterer.Item("pin10", -45, -90));
+        assertEquals(100, tree.size());
+        assertTrue(tree.query(1, 1, 1, 1).isEmpty());
+        List<PinClusterer.Item> moved = tree.query(-45, -45, -90, -90);
+        assertEquals(1, moved.size());
+        assertEquals("pin10", moved.get(0).getPinId());
+        assertEquals(100, tree.query(-90, 90, -180, 180).size());
+
+        // and back, then removed from where it is now
+        tree.put(new PinClusterer.Item("pin10", 1, 1));
+        assertTrue(tree.query(-45, -45, -90, -90).isEmpty());
+        assertEquals(1, tree.query(1, 1, 1, 1).size());
+        assertTrue(tree.remove("pin10"));
+        assertTrue(tree.query(1, 1, 1, 1).isEmpty());
+        assertEquals(99, tree.query(-90, 90, -180, 180).size());
+    }
+
+    @Test
+    public void clear_removesEveryPin() {
+        for (int i = 0; i < 100; i++) {
+            put("pin" + i, i * 0.1, i * 0.1);
+        }
+        tree.clear();
+        assertEquals(0, tree.size());
+        assertTrue(tree.query(-90, 90, -180, 180).isEmpty());
+        assertFalse(tree.remove("pin1"));
+    }
+}
@@ -0,0 +1,128 @@
+package stanford.cs194.stanfood.helpers;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that getEventTimeRange formats like the SimpleDateFormat version it replaced,
+ * and that cached formatters follow time zone changes.
+ */
+public class TimeDateUtilsTest {
+    private static final long MINUTE = 60000;
+    private static final int EVENTS = 200;
+
+    private TimeZone defaultTimeZone;
+    private Locale defaultLocale;
+
+    @Before
+    public void setUp() {
+        defaultTimeZone = TimeZone.getDefault();
+        defaultLocale = Locale.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("America/Los_Angeles"));
+        Locale.setDefault(Locale.US);
+        TimeDateUtils.onTimeSettingsChanged();
+    }
+
+    @After
+    public void tearDown() {
+        TimeZone.setDefault(defaultTimeZone);
+        Locale.setDefault(defaultLocale);
+        TimeDateUtils.onTimeSettingsChanged();
+    }
+
+    /**
+     * The formatting getEventTimeRange used before it was cached.
+     */
+    private static String formatWithSimpleDateFormat(long start, long duration) {
+        Calendar startCalendar = Calendar.getInstance();
+        startCalendar.setTimeInMillis(start);
+        Calendar endCalendar = Calendar.getInstance();
+        endCalendar.setTimeInMillis(start + duration);
+        return new SimpleDateFormat("E MMM dd, hh:mm").format(startCalendar.getTime())
+                + " - " + new SimpleDateFormat("hh:mma").format(endCalendar.getTime());
+    }
+
+    private static long[] newStarts() {
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(2019, Calendar.MARCH, 9, 0, 0, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        long[] starts = new long[EVENTS];
+        for (int i = 0; i < EVENTS; i++) {
+            // every 47 minutes, across the daylight saving change of March 10
+            starts[i] = calendar.getTimeInMillis() + i * 47 * MINUTE;
+        }
+        return starts;
+    }
+
+    @Test
+    public void getEventTimeRange_matchesSimpleDateFormat() {
+        long[] starts = newStarts();
+        long[] durations = {0, 30 * MINUTE, 90 * MINUTE, 20 * 60 * MINUTE};
+        for (long start : starts) {
+            for (long duration : durations) {
+                assertEquals(formatWithSimpleDateFormat(start, duration),
+                        TimeDateUtils.getEventTimeRange(start, duration));
+            }
+        }
+    }
+
+    @Test
+    public void getEventTimeRange_followsTimeZoneChanges() {
+        long start = newStarts()[20];
+        String pacific = TimeDateUtils.getEventTimeRange(start, 90 * MINUTE);
+
+        TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+        TimeDateUtils.onTimeSettingsChanged();
+        String eastern = TimeDateUtils.getEventTimeRange(start, 90 * MINUTE);
+
+        assertNotEquals(pacific, eastern);
+        assertEquals(formatWithSimpleDateFormat(start, 90 * MINUTE), eastern);
+    }
+
+    @Test
+    public void getFormat_followsTimeZoneChanges() {
+        Date date = new Date(newStarts()[20]);
+        String pacific = TimeDateUtils.getFormat(TimeDateUtils.TIME_PATTERN).format(date);
+
+        TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+        TimeDateUtils.onTimeSettingsChanged();
+        String eastern = TimeDateUtils.getFormat(TimeDateUtils.TIME_PATTERN).format(date);
+
+        assertNotEquals(pacific, eastern);
+        assertEquals(new SimpleDateFormat(TimeDateUtils.TIME_PATTERN).format(date), eastern);
+    }
+
+    @Test
+    public void getFormat_isCachedPerThread() throws InterruptedException {
+        final SimpleDateFormat format = TimeDateUtils.getFormat(TimeDateUtils.DATE_PATTERN);
+        assertSame(format, TimeDateUtils.getFormat(TimeDateUtils.DATE_PATTERN));
+
+        final SimpleDateFormat[] otherThreadFormat = new SimpleDateFormat[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                otherThreadFormat[0] = TimeDateUtils.getFormat(TimeDateUtils.DATE_PATTERN);
+            }
+        });
+        thread.start();
+        thread.join();
+        assertNotNull(otherThreadFormat[0]);
+        assertNotSame(format, otherThreadFormat[0]);
+    }
+
+    @Test
+    public void getEventTimeRange_reusesCachedRange() {
+        long start = newStarts()[20];
+        String range = TimeDateUtils.getEventTimeRange(start, 90 * MINUTE);
+        assertSame(range, TimeDateUtils.getEventTimeRange(start, 90 * MINUTE));
+    }
+}
@@ -1,5 +1,7 @@
 const admin = require('firebase-admin');
 const functions = require('firebase-functions');
+const crypto = require('crypto');
+const https = require('https');
 const moment = require('moment');
 
 admin.initializeApp(functions.config().firebase);
@@ -31,72 +33,516 @@ function isBetween(value, lowerLimit, upperLimit) {
   return compare(value, lowerLimit) >= 0 && compare(value, upperLimit) <= 0;
 }
 
-exports.checkPinEvents = functions.https.onRequest((req, res) => {
+const GEOHASH_BASE32 = '0123456789bcdefghjkmnpqrstuvwxyz';
+// same precisions as the app's GeoHash.DEFAULT_PRECISION and Database.pinLocationPrecision
+const PIN_GEOHASH_PRECISION = 10;
+const PIN_LOCATION_PRECISION = 12;
 
-  //create database refs
-  var pinsRef = admin.database().ref('/pins');
-  var eventsRef = admin.database().ref('/events');
-  var foodRef = admin.database().ref('/food');
+/**
+ * Encodes a coordinate into a geohash with the given number of characters.
+ * Mirrors GeoHash.encode in the app, so keys written here match the ones clients query.
+ */
+function encodeGeohash(latitude, longitude, precision) {
+  var minLat = -90, maxLat = 90;
+  var minLng = -180, maxLng = 180;
+  var hash = '';
+  var evenBit = true;
+  var bit = 0;
+  var ch = 0;
+  while (hash.length < precision) {
+    var mid;
+    if (evenBit) {
+      mid = (minLng + maxLng) / 2;
+      if (longitude >= mid) {
+        ch = (ch << 1) | 1;
+        minLng = mid;
+      } else {
+        ch = ch << 1;
+        maxLng = mid;
+      }
+    } else {
+      mid = (minLat + maxLat) / 2;
+      if (latitude >= mid) {
+        ch = (ch << 1) | 1;
+        minLat = mid;
+      } else {
+        ch = ch << 1;
+        maxLat = mid;
+      }
+    }
+    evenBit = !evenBit;
+    if (++bit === 5) {
+      hash += GEOHASH_BASE32.charAt(ch);
+      bit = 0;
+      ch = 0;
+    }
+  }
+  return hash;
+}
+
+/**
+ * One-off migration for pins stored before they were indexed by location.
+ * Sets the geohash of every pin that has none, so subscribePinsInRadius finds it, and adds
+ * the pin to /pin_locations, so createEvent reuses it instead of creating a second pin at
+ * the same coordinate. Existing /pin_locations entries are kept.
+ */
+exports.backfillPinGeohashes = functions.https.onRequest((req, res) => {
+  var db = admin.database();
+  Promise.all([db.ref('/pins').once('value'), db.ref('/pin_locations').once('value')]).then((results) => {
+    var pinLocations = results[1].val() || {};
+    var updates = {};
+    var count = 0;
+    results[0].forEach((pinSnapshot) => {
+      var pin = pinSnapshot.val();
+      var coordinate = pin.locationCoordinate;
+      if (pin.geohash || !coordinate) {
+        return;
+      }
+      updates['pins/' + pinSnapshot.key + '/geohash'] =
+        encodeGeohash(coordinate.latitude, coordinate.longitude, PIN_GEOHASH_PRECISION);
+      var locationKey = encodeGeohash(coordinate.latitude, coordinate.longitude, PIN_LOCATION_PRECISION);
+      if (!pinLocations[locationKey]) {
+        pinLocations[locationKey] = pinSnapshot.key;
+        updates['pin_locations/' + locationKey] = pinSnapshot.key;
+      }
+      count++;
+    });
+    console.log('Backfilled the geohash of ' + count + ' pin(s)');
+    return db.ref().update(updates);
+  }).then(() => {
+    return res.status(200).end();
+  }).catch((err) => {
+    console.log(err);
+    return res.status(500).end();
+  });
+});
+
+/**
+ * Returns the composite key "pinId_timeStart" events are indexed by in pinTimeStart.
+ * Mirrors Event.getPinTimeKey in the app: timeStart is zero-padded to 15 digits.
+ */
+function getPinTimeKey(pinId, timeStart) {
+  var time = String(Math.floor(timeStart));
+  while (time.length < 15) {
+    time = '0' + time;
+  }
+  return pinId + '_' + time;
+}
+
+/**
+ * Migrates events written before pin and user lists were paged: sets the pinTimeStart
+ * key the pin lists are queried by, and indexes each event under user_events/{userId}
+ * by its timeStart, replacing legacy entries of true that sort before every timestamp.
+ * Index entries of events that no longer exist are removed. Safe to run more than once.
+ */
+exports.backfillEventIndexes = functions.https.onRequest((req, res) => {
+  var db = admin.database();
+  Promise.all([db.ref('/events').once('value'), db.ref('/user_events').once('value')]).then((results) => {
+    var userEvents = results[1].val() || {};
+    var updates = {};
+    var eventIds = {};
+    results[0].forEach((eventSnapshot) => {
+      var event = eventSnapshot.val();
+      var timeStart = event.timeStart || 0;
+      eventIds[eventSnapshot.key] = true;
+      if (event.pinId) {
+        var pinTimeStart = getPinTimeKey(event.pinId, timeStart);
+        if (event.pinTimeStart !== pinTimeStart) {
+          updates['events/' + eventSnapshot.key + '/pinTimeStart'] = pinTimeStart;
+        }
+      }
+      if (event.userId && (userEvents[event.userId] || {})[eventSnapshot.key] !== timeStart) {
+        updates['user_events/' + event.userId + '/' + eventSnapshot.key] = timeStart;
+      }
+    });
+    Object.keys(userEvents).forEach((userId) => {
+      Object.keys(userEvents[userId]).forEach((eventId) => {
+        if (!eventIds[eventId]) {
+          updates['user_events/' + userId + '/' + eventId] = null;
+        }
+      });
+    });
+    console.log('Updated ' + Object.keys(updates).length + ' event index entries');
+    return db.ref().update(updates);
+  }).then(() => {
+    return res.status(200).end();
+  }).catch((err) => {
+    console.log(err);
+    return res.status(500).end();
+  });
+});
+
+const STANFORD_LOCATION_SUFFIX = ' Stanford, CA 94305';
+
+/**
+ * Returns the /gazetteer key of a location name. Mirrors Gazetteer.getKey in the app:
+ * characters Firebase keys may not contain are replaced with '_'.
+ */
+function getGazetteerKey(locationName) {
+  return locationName.replace(/[.#$[\]/]/g, '_');
+}
+
+/**
+ * Geocodes a Stanford location name with the Google Geocoding API.
+ * Resolves to {latitude, longitude}, or null if the name wasn't found.
+ */
+function geocodeLocation(locationName, apiKey) {
+  var url = 'https://maps.googleapis.com/maps/api/geocode/json?address=' +
+    encodeURIComponent(locationName + STANFORD_LOCATION_SUFFIX) + '&key=' + apiKey;
+  return new Promise((resolve, reject) => {
+    https.get(url, (response) => {
+      var body = '';
+      response.on('data', (chunk) => {
+        body += chunk;
+      });
+      response.on('end', () => {
+        try {
+          var results = JSON.parse(body).results || [];
+          if (results.length === 0) {
+            resolve(null);
+            return;
+          }
+          var location = results[0].geometry.location;
+          resolve({latitude: location.lat, longitude: location.lng});
+        } catch (err) {
+          reject(err);
+        }
+      });
+    }).on('error', reject);
+  });
+}
+
+/**
+ * Seeds /gazetteer, the table clients resolve event locations with.
+ * Expects a JSON body {"locations": [...]} with the names of R.array.location_list, and
+ * geocodes each name with the API key set by `firebase functions:config:set geocoding.key=...`.
+ * Clients only read the table, so every entry comes from here.
+ */
+exports.seedGazetteer = functions.https.onRequest((req, res) => {
+  var body = req.body || {};
+  var locationNames = body.locations || [];
+  var apiKey = functions.config().geocoding.key;
+
+  Promise.all(locationNames.map((locationName) =>
+    geocodeLocation(locationName, apiKey).catch((err) => {
+      console.log(err);
+      return null;
+    })
+  )).then((locations) => {
+    var updates = {};
+    var missing = [];
+    locationNames.forEach((locationName, index) => {
+      if (locations[index]) {
+        updates[getGazetteerKey(locationName)] = locations[index];
+      } else {
+        missing.push(locationName);
+      }
+    });
+    console.log('Seeded ' + Object.keys(updates).length + ' location(s), could not geocode: ', missing);
+    return admin.database().ref('/gazetteer').update(updates).then(() => {
+      return res.status(200).send({"missing": missing});
+    });
+  }).catch((err) => {
+    console.log(err);
+    return res.status(500).end();
+  });
+});
+
+const ARCHIVE_BATCH_SIZE = 100;
+
+/**
+ * Returns the events_archive partition of an event, the UTC month it started in (yyyyMM).
+ */
+function getArchivePartition(event) {
+  return moment.utc(event.timeStart).format('YYYYMM');
+}
+
+// keys of the numbered shards pin counters had before they held one entry per event
+const LEGACY_SHARD_KEY = /^[0-9]+$/;
+
+/**
+ * One-off migration of pin counters to one entry per live event, the layout clients write
+ * in the same update as the event itself.
+ * Pins from before sharded counters only have numEvents, and sharded counters hold counts
+ * in numbered shards that can't be matched to events. For each pin, the numbered shards
+ * are dropped and an entry is added for every live event, in a transaction so entries
+ * written meanwhile are kept. Meant to be run once, when few events are being created.
+ */
+exports.backfillPinCounters = functions.https.onRequest((req, res) => {
+  var db = admin.database();
+  Promise.all([db.ref('/pins').once('value'), db.ref('/events').once('value')]).then((results) => {
+    var eventIdsByPin = {};
+    results[1].forEach((eventSnapshot) => {
+      var pinId = eventSnapshot.val().pinId;
+      if (pinId) {
+        eventIdsByPin[pinId] = eventIdsByPin[pinId] || [];
+        eventIdsByPin[pinId].push(eventSnapshot.key);
+      }
+    });
+    var pinIds = [];
+    results[0].forEach((pinSnapshot) => {
+      pinIds.push(pinSnapshot.key);
+    });
+    return Promise.all(pinIds.map((pinId) =>
+      db.ref('/pin_counters').child(pinId).transaction((shards) => {
+        var counter = {};
+        Object.keys(shards || {}).forEach((key) => {
+          if (!LEGACY_SHARD_KEY.test(key)) {
+            counter[key] = shards[key];
+          }
+        });
+        (eventIdsByPin[pinId] || []).forEach((eventId) => {
+          counter[eventId] = 1;
+        });
+        return counter;
+      })
+    )).then(() => {
+      console.log('Migrated the counters of ' + pinIds.length + ' pin(s)');
+      return null;
+    });
+  }).then(() => {
+    return res.status(200).end();
+  }).catch((err) => {
+    console.log(err);
+    return res.status(500).end();
+  });
+});
 
-  // initialize storage bucket
+/**
+ * Deletes a deduplicated photo, in all its sizes, and its /image_hashes entry once no
+ * live food item uses it any more.
+ */
+function deleteUnusedImage(imageHash) {
+  var db = admin.database();
   var bucket = admin.storage().bucket();
+  return db.ref('/food').orderByChild('imageHash').equalTo(imageHash).limitToFirst(1).once('value')
+    .then((foodSnapshot) => {
+      if (foodSnapshot.exists()) {
+        return null;
+      }
+      return db.ref('/image_hashes').child(imageHash).once('value').then((imageSnapshot) => {
+        var image = imageSnapshot.val();
+        if (!image || !image.storagePath) {
+          return null;
+        }
+        // unindexed first, so no new food item picks up the photo while it is deleted
+        return imageSnapshot.ref.remove().then(() => Promise.all(['', '_medium', '_thumbnail'].map((suffix) =>
+          bucket.file(image.storagePath + suffix).delete().catch((err) => console.log(err)))));
+      });
+    });
+}
 
-  eventsRef.once('value', (snapshot) => {
-  	snapshot.forEach((childSnapshot) => {
-  		var data = childSnapshot.val();
-  		try {
-  			var timeStart = data.timeStart;
-  			var duration = data.duration;
-  			var curTime = new Date().getTime();
-
-  			// if event is expired
-  			if(timeStart + duration < curTime){
-  				var eventKey = childSnapshot.key;
-  				var pinId = data.pinId;
-
-          // removed food associated with expired event
-          foodRef.orderByChild('eventId').equalTo(eventKey).once('value').then((foodSnapshot) => {
-            return foodSnapshot.forEach((foodChildSnapshot) => {
-              var foodKey = foodChildSnapshot.key;
-
-              // remove image associated with food from storage
-              var imagePath = foodChildSnapshot.val().imagePath;
-              if(imagePath){
-                bucket.file(imagePath).delete();
-                console.log('Removed food item ' + foodKey + ' image ' + imagePath + ' from storage');
-              }
+/**
+ * Returns the storage path of a photo from its download url, which encodes it after /o/.
+ * Photos stored before download urls were used keep their storage path instead.
+ */
+function getStoragePathFromUrl(url) {
+  if (!/^https?:/.test(url)) {
+    return url;
+  }
+  var match = /\/o\/([^?]+)/.exec(url);
+  return match ? decodeURIComponent(match[1]) : null;
+}
+
+/**
+ * Returns the storage paths of the sizes a food item's photo is stored in. Food written
+ * before storagePath was saved only has download urls, which the paths are read from.
+ */
+function getFoodStoragePaths(food) {
+  var paths = [];
+  [['imagePath', ''], ['mediumPath', '_medium'], ['thumbnailPath', '_thumbnail']].forEach((size) => {
+    var url = food[size[0]];
+    if (!url) {
+      return;
+    }
+    var path = food.storagePath ? food.storagePath + size[1] : getStoragePathFromUrl(url);
+    if (path) {
+      paths.push(path);
+    }
+  });
+  return paths;
+}
+
+/**
+ * Deletes the photo a food item uploaded itself but that isn't the copy indexed under its
+ * hash, e.g. because another upload of the same photo was indexed first. Nothing else
+ * uses such a photo, since food items only reuse indexed photos.
+ */
+function deleteUnindexedImage(imageHash, storagePath, paths) {
+  var bucket = admin.storage().bucket();
+  return admin.database().ref('/image_hashes').child(imageHash).once('value').then((imageSnapshot) => {
+    var image = imageSnapshot.val();
+    if (image && image.storagePath === storagePath) {
+      return null;
+    }
+    return Promise.all(paths.map((path) => bucket.file(path).delete().catch((err) => console.log(err))));
+  });
+}
+
+/**
+ * Moves a batch of expired events, with their food items, from /events and /food into
+ * /events_archive/{yyyyMM}/events and /events_archive/{yyyyMM}/food in one multi-path update.
+ * The pin counter entries of the events are cleared in the same update, so pin event
+ * counts stay exact without recounting. Images of archived food are removed from storage.
+ * Resolves to the number of archived events.
+ */
+function archiveExpiredBatch(now) {
+  var db = admin.database();
+  var bucket = admin.storage().bucket();
+
+  // events are ordered by start time, so only events that have started are read
+  return db.ref('/events').orderByChild('timeStart').endAt(now).once('value').then((snapshot) => {
+    var expired = [];
+    snapshot.forEach((childSnapshot) => {
+      var event = childSnapshot.val();
+      if (event.timeStart + event.duration < now && expired.length < ARCHIVE_BATCH_SIZE) {
+        expired.push({key: childSnapshot.key, event: event});
+      }
+    });
+
+    var foodPromises = expired.map((item) =>
+      db.ref('/food').orderByChild('eventId').equalTo(item.key).once('value'));
+    return Promise.all(foodPromises).then((foodSnapshots) => {
+      var updates = {};
+      var imagePaths = [];
+      var imageHashes = {};
+      var hashedImages = [];
+      expired.forEach((item, index) => {
+        var partition = 'events_archive/' + getArchivePartition(item.event);
+        updates[partition + '/events/' + item.key] = item.event;
+        updates['events/' + item.key] = null;
+        if (item.event.userId) {
+          updates['user_events/' + item.event.userId + '/' + item.key] = null;
+        }
+        if (item.event.pinId) {
+          updates['pin_counters/' + item.event.pinId + '/' + item.key] = null;
+        }
+        foodSnapshots[index].forEach((foodChildSnapshot) => {
+          var food = foodChildSnapshot.val();
+          updates[partition + '/food/' + foodChildSnapshot.key] = food;
+          updates['food/' + foodChildSnapshot.key] = null;
+          if (food.imageHash) {
+            // deduplicated photos may be shared with food items that are still live
+            imageHashes[food.imageHash] = true;
+            if (food.storagePath) {
+              hashedImages.push({imageHash: food.imageHash, storagePath: food.storagePath,
+                paths: getFoodStoragePaths(food)});
+            }
+          } else {
+            imagePaths = imagePaths.concat(getFoodStoragePaths(food));
+          }
+        });
+      });
+      if (expired.length === 0) {
+        return 0;
+      }
+      return db.ref().update(updates).then(() => {
+        console.log('Archived ' + expired.length + ' expired event(s)');
+        imagePaths.forEach((imagePath) => {
+          bucket.file(imagePath).delete().catch((err) => console.log(err));
+        });
+        Object.keys(imageHashes).forEach((imageHash) => {
+          deleteUnusedImage(imageHash).catch((err) => console.log(err));
+        });
+        hashedImages.forEach((image) => {
+          deleteUnindexedImage(image.imageHash, image.storagePath, image.paths)
+            .catch((err) => console.log(err));
+        });
+        return expired.length;
+      });
+    });
+  });
+}
 
-              console.log('Removed food item ' + foodKey + ' for expired event ' + eventKey);
-              return foodRef.child(foodKey).remove();
-            });
-          }).catch((err) => {
-            console.log(err);
-          });
-
-  				// remove expired event, decrement numEvents on associated pin
-  				pinsRef.child(pinId).child('numEvents').transaction((numEvents) => {
-  					eventsRef.child(eventKey).remove();
-  					if(numEvents) {
-  						numEvents--;
-  						console.log('Expired event ' + eventKey + ' for pin ' + pinId +
-  						'. This pin now has ' + numEvents + ' event(s).');
-  					}
-  					return numEvents;
-  				});
-  			}
-  		}
-  		catch(err) {
-  			console.log(err);
-			res.status(404).end();
-  		}
-  	})
-  })
-
-  //send back response
-  res.status(200).end();
+/**
+ * Archives all expired events in batches, every hour. EventArchiver mirrors this in the
+ * app, so the archiving logic can be tested against LocalEventArchiveStore.
+ */
+exports.checkPinEvents = functions.pubsub.schedule('every 1 hours').onRun(() => {
+  var now = new Date().getTime();
 
+  // a full batch may have left more expired events behind
+  var archiveAll = () => archiveExpiredBatch(now).then((archived) =>
+    archived === ARCHIVE_BATCH_SIZE ? archiveAll() : null);
+
+  return archiveAll().catch((err) => {
+    console.log(err);
+    return null;
+  });
 });
 
+const IMAGE_SIZES = [['full', 'imagePath', ''], ['medium', 'mediumPath', '_medium'],
+  ['thumbnail', 'thumbnailPath', '_thumbnail']];
+
+/**
+ * Indexes a food item's photo in /image_hashes under its imageHash, so later uploads of
+ * the same photo reuse it. The rules keep clients from writing the index, but imageHash
+ * is written by the client, so an entry is only added if the food item's urls are download
+ * urls of its own storagePath in this bucket and the SHA-256 of the stored full size,
+ * computed here, equals imageHash. The first photo indexed under a hash is kept.
+ */
+exports.indexImageHashes = functions.database.ref('/food/{foodId}')
+    .onWrite((change, context) => {
+      const food = change.after.val();
+      if (!food || !food.imageHash || !food.storagePath) {
+        return null;
+      }
+      const before = change.before.val();
+      if (before && before.imageHash === food.imageHash
+          && before.storagePath === food.storagePath) {
+        return null;
+      }
+      const bucket = admin.storage().bucket();
+      const urlPrefix = 'https://firebasestorage.googleapis.com/v0/b/' + bucket.name + '/o/';
+      const image = {storagePath: food.storagePath};
+      const valid = IMAGE_SIZES.every((size) => {
+        const url = food[size[1]];
+        image[size[0]] = url;
+        return typeof url === 'string' && url.indexOf(urlPrefix) === 0
+          && getStoragePathFromUrl(url) === food.storagePath + size[2];
+      });
+      if (!valid) {
+        console.log('Not indexing the photo of food ' + context.params.foodId);
+        return null;
+      }
+      const indexRef = admin.database().ref('/image_hashes').child(food.imageHash);
+      return indexRef.once('value').then((indexSnapshot) => {
+        // already indexed, e.g. this food item reuses the indexed photo
+        if (indexSnapshot.exists()) {
+          return null;
+        }
+        return bucket.file(food.storagePath).download().then((results) => {
+          const hash = crypto.createHash('sha256').update(results[0]).digest('hex');
+          if (hash !== food.imageHash) {
+            console.log('Hash mismatch for the photo of food ' + context.params.foodId);
+            return null;
+          }
+          return indexRef.transaction((current) => current || image);
+        });
+      }).catch((err) => {
+        console.log(err);
+        return null;
+      });
+    });
+
+/**
+ * Keeps /pins/{pinId}/numEvents equal to the sum of the pin's counter entries, so clients
+ * can keep reading the count from the pin itself. The counter node disappears once its
+ * last entry is removed, which counts as 0.
+ */
+exports.aggregatePinCounters = functions.database.ref('/pin_counters/{pinId}')
+    .onWrite((change, context) => {
+      const pinId = context.params.pinId;
+      let total = 0;
+      change.after.forEach((shard) => {
+        total += Number(shard.val()) || 0;
+      });
+      const pinRef = admin.database().ref('/pins').child(pinId);
+      // a pin that no longer exists mustn't be recreated with only a count
+      return pinRef.once('value').then((pinSnapshot) =>
+        pinSnapshot.exists() ? pinRef.child('numEvents').set(total) : null);
+    });
+
 exports.sendNotificationsForEventAdded = functions.database.ref('/events/{eventId}')
     .onCreate((snapshot, context) => {
       // Grab the current value of what was written to the Realtime Database.
@@ -188,4 +634,38 @@ exports.getNumEvents = functions.https.onRequest((req, res) => {
     console.log(err);
     return res.status(404).end();
   });
-});
\ No newline at end of file
+});
+
+/**
+ * Batched version of getNumEvents.
+ * Expects a JSON body {"pinIds": [...], "start": ms, "end": ms} and responds with
+ * {"counts": {pinId: count}}, the number of events of each pin starting in [start, end].
+ */
+exports.getNumEventsBatch = functions.https.onRequest((req, res) => {
+  var eventsRef = admin.database().ref('/events');
+
+  var body = req.body || {};
+  var pinIds = body.pinIds || [];
+  var dateStart = Number(body.start);
+  var dateEnd = Number(body.end);
+
+  // only the events of each pin within the range are read, through the pinTimeStart index
+  var countPromises = pinIds.map((pinId) =>
+    eventsRef.orderByChild('pinTimeStart')
+      .startAt(getPinTimeKey(pinId, dateStart))
+      .endAt(getPinTimeKey(pinId, dateEnd))
+      .once('value').then((eventSnapshot) => eventSnapshot.numChildren())
+  );
+
+  Promise.all(countPromises).then((results) => {
+    var counts = {};
+    pinIds.forEach((pinId, index) => {
+      counts[pinId] = results[index];
+    });
+    console.log('Counted events for ' + pinIds.length + ' pins between ' + dateStart + ' and ' + dateEnd);
+    return res.status(200).send({"counts": counts});
+  }).catch((err) => {
+    console.log(err);
+    return res.status(404).end();
+  });
+});